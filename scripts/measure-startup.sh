@@ -0,0 +1,48 @@
+#!/bin/sh
+# Measures startup time and resident memory of the bot, without connecting to Telegram:
+# every run starts ru.familybudget.TrainingRun --startup, which opens a throwaway database,
+# constructs the bot and prints VmRSS/VmHWM from /proc. Wall time includes JVM startup and exit.
+#
+#   mvn -P appcds clean package && scripts/measure-startup.sh [runs]
+#
+# Compares the JDK the script finds on PATH (or in JAVA_HOME) with the jlinked runtime
+# and its AppCDS archive, when the appcds profile has built them. Prints the median of every value.
+set -eu
+
+runs=${1:-5}
+target=$(dirname "$0")/../target
+jar=$(ls "$target"/familybudget-*.jar | grep -v original | head -n 1)
+java=${JAVA_HOME:+$JAVA_HOME/bin/}java
+
+median() {
+    sort -n | awk '{ v[NR] = $1 } END { print v[int((NR + 1) / 2)] }'
+}
+
+measure() {
+    name=$1
+    shift
+    out=$(mktemp)
+    i=0
+    while [ "$i" -lt "$runs" ]; do
+        start=$(date +%s%N)
+        "$@" -cp "$jar" ru.familybudget.TrainingRun --startup 2>/dev/null >>"$out"
+        echo "wall_ms=$(( ($(date +%s%N) - start) / 1000000 ))" >>"$out"
+        i=$((i + 1))
+    done
+    printf '%-18s' "$name"
+    for key in wall_ms rss_kb peak_rss_kb; do
+        printf '  %s=%s' "$key" "$(sed -n "s/^$key=//p" "$out" | median)"
+    done
+    echo
+    rm -f "$out"
+}
+
+measure jdk "$java"
+measure jdk-serial "$java" -XX:+UseSerialGC
+if [ -x "$target/runtime/bin/java" ]; then
+    measure runtime "$target/runtime/bin/java"
+fi
+if [ -f "$target/familybudget.jsa" ]; then
+    measure runtime+cds "$target/runtime/bin/java" -XX:SharedArchiveFile="$target/familybudget.jsa"
+    measure runtime+cds-serial "$target/runtime/bin/java" -XX:SharedArchiveFile="$target/familybudget.jsa" -XX:+UseSerialGC
+fi
@@ -0,0 +1,120 @@
+package ru.familybudget;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Random;
+
+/**
+ * Synthetic data for the benchmarks.
+ * Databases are generated once per row count and schema version with a fixed seed under {@code bench.dir}
+ * (default {@code target/bench-db}) and reused by later runs; a trial only copies one.
+ * Rows are loaded into the base schema and upgraded by the remaining migrations right away, as a production
+ * database would be, so opening a copy migrates nothing.
+ */
+final class BenchmarkData {
+    static final String[][] CATEGORIES = {
+            {"products", "магазин"}, {"health", "аптека"}, {"bills", "квитанция"}, {"food", "кофе"},
+            {"telecom", "интернет"}, {"transport", "такси"}, {"sport", "зал"}, {"subscriptions", "подписка"},
+            {"car", "бензин"}, {"shopping", "озон"}, {"beauty", "салон"}, {"harmful", "пиво"},
+            {"entertainment", "кино"}, {"gift", "цветы"}, {"relax", "море"}, {"other", "прочее"}
+    };
+    private static final Path DIR = Path.of(System.getProperty("bench.dir", "target/bench-db"));
+    private static final int HISTORY_DAYS = 5 * 365;
+    private static final int BATCH_SIZE = 10_000;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private BenchmarkData() {
+    }
+
+    static Path database(int rows) throws IOException, SQLException {
+        Path file = DIR.resolve("budget_" + rows + "_v" + SchemaMigrations.latestVersion() + ".db");
+        if (Files.exists(file)) {
+            return file;
+        }
+        Files.createDirectories(DIR);
+        Path tmp = Files.createTempFile(DIR, "budget_" + rows, ".tmp");
+        Files.delete(tmp);
+        generate(tmp, rows);
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        return file;
+    }
+
+    static Path emptyDatabase() throws IOException, SQLException {
+        return copyToTemp(database(0));
+    }
+
+    static Path copyToTemp(Path database) throws IOException {
+        Path copy = Files.createTempFile("budget_bench", ".db");
+        Files.copy(database, copy, StandardCopyOption.REPLACE_EXISTING);
+        return copy;
+    }
+
+    static void delete(Path database) throws IOException {
+        for (String suffix : new String[]{"", "-wal", "-shm"}) {
+            Files.deleteIfExists(database.resolveSibling(database.getFileName() + suffix));
+        }
+    }
+
+    static BudgetDB open(Path database) {
+        BudgetDB budgetDB = new BudgetDB("jdbc:sqlite:" + database);
+        if (!budgetDB.connect()) {
+            throw new IllegalStateException("Cannot open " + database);
+        }
+        return budgetDB;
+    }
+
+    static Expense randomExpense(Random random) {
+        String[] category = CATEGORIES[random.nextInt(CATEGORIES.length)];
+        Expense expense = new Expense();
+        expense.setAmount(50 + random.nextInt(5000));
+        expense.setCategory(category[1]);
+        expense.setRawText(expense.getAmount() + " " + category[1]);
+        return expense;
+    }
+
+    private static void generate(Path file, int rows) throws SQLException {
+        Random random = new Random(42);
+        LocalDateTime end = LocalDateTime.now();
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + file)) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("PRAGMA journal_mode=WAL;");
+            }
+            SchemaMigrations.migrate(conn, 1);
+            conn.setAutoCommit(false);
+            try (PreparedStatement insert = conn.prepareStatement(
+                    "INSERT INTO expense (amount, user_id, created, category_codename, raw_text) VALUES (?, ?, ?, ?, ?);")) {
+                for (int i = 0; i < rows; i++) {
+                    String[] category = CATEGORIES[random.nextInt(CATEGORIES.length)];
+                    int amount = 50 + random.nextInt(5000);
+                    LocalDateTime created = end.minusSeconds(random.nextLong(HISTORY_DAYS * 86_400L));
+                    insert.setInt(1, amount);
+                    insert.setInt(2, 1 + random.nextInt(3));
+                    insert.setString(3, created.format(DATE_FORMATTER));
+                    insert.setString(4, category[0]);
+                    insert.setString(5, amount + " " + category[1]);
+                    insert.addBatch();
+                    if ((i + 1) % BATCH_SIZE == 0) {
+                        insert.executeBatch();
+                    }
+                }
+                insert.executeBatch();
+            }
+            conn.commit();
+            conn.setAutoCommit(true);
+            SchemaMigrations.migrate(conn);
+            // Copies take the database file alone
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("PRAGMA wal_checkpoint(TRUNCATE);");
+            }
+        }
+    }
+}
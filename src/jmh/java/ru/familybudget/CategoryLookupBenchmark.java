@@ -0,0 +1,38 @@
+package ru.familybudget;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CategoryLookupBenchmark {
+
+    @Param({"магазин", " Аптека ", "продуктв", "неизвестно"})
+    public String category;
+
+    private Path database;
+    private BudgetDB budgetDB;
+
+    @Setup
+    public void setUp() throws Exception {
+        database = BenchmarkData.emptyDatabase();
+        budgetDB = BenchmarkData.open(database);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        budgetDB.close();
+        BenchmarkData.delete(database);
+    }
+
+    @Benchmark
+    public Category getCategory() {
+        return budgetDB.getCategory(category);
+    }
+}
@@ -0,0 +1,94 @@
+package ru.familybudget;
+
+import org.json.JSONArray;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.file.Path;
+import java.time.YearMonth;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queries against generated databases of different sizes.
+ * Each trial works on a temporary copy, so inserts do not change the cached data set.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DatabaseBenchmark {
+
+    @Param({"10000", "1000000", "10000000"})
+    public int rows;
+
+    private Path database;
+    private BudgetDB budgetDB;
+    private final Random random = new Random(7);
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        database = BenchmarkData.copyToTemp(BenchmarkData.database(rows));
+        budgetDB = BenchmarkData.open(database);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        budgetDB.close();
+        BenchmarkData.delete(database);
+    }
+
+    @Benchmark
+    public Map<String, String> insertExpense() {
+        Expense expense = BenchmarkData.randomExpense(random);
+        return budgetDB.insertExpense(expense, 1, expense.getRawText());
+    }
+
+    @Benchmark
+    public JSONArray readMonthStatistic() {
+        return budgetDB.readMonthStatistic(YearMonth.now());
+    }
+
+    /**
+     * A repeated report: the check for changes made outside the bot and a cache lookup.
+     */
+    @Benchmark
+    public JSONArray getMonthStatisticCached() {
+        return budgetDB.getMonthStatistic();
+    }
+
+    @Benchmark
+    public String readTodaySum() {
+        return budgetDB.readTodaySum();
+    }
+
+    @Benchmark
+    public String readLastExpenses() {
+        return budgetDB.readLastExpenses();
+    }
+
+    @Benchmark
+    public ExpensePage readFirstExpensePage() {
+        return budgetDB.readExpensePage(ExpenseFilter.ALL, 0, true);
+    }
+
+    /**
+     * Keyset pagination: a page in the middle of the history costs the same as the first one.
+     */
+    @Benchmark
+    public ExpensePage readMiddleExpensePage() {
+        return budgetDB.readExpensePage(ExpenseFilter.ALL, rows / 2, true);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public void forEachExpense(Blackhole blackhole) {
+        budgetDB.forEachExpense((month, category, amount) -> blackhole.consume(amount));
+    }
+}
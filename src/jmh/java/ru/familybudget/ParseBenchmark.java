@@ -0,0 +1,47 @@
+package ru.familybudget;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+
+    @Param({"1000 продукты", "250 кофе 01.02.2024", "99,90 аптека вчера", "1500 продуктв", "неверный формат"})
+    public String text;
+
+    private Path database;
+    private BudgetDB budgetDB;
+
+    @Setup
+    public void setUp() throws Exception {
+        database = BenchmarkData.emptyDatabase();
+        budgetDB = BenchmarkData.open(database);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        budgetDB.close();
+        BenchmarkData.delete(database);
+    }
+
+    @Benchmark
+    public Expense parse() {
+        return ExpenseParser.parse(text);
+    }
+
+    /**
+     * Parsing plus category resolution, the work done for every incoming expense before the insert.
+     */
+    @Benchmark
+    public Category parseAndResolve() {
+        Expense expense = ExpenseParser.parse(text);
+        return expense == null ? null : budgetDB.getCategory(expense.getCategory());
+    }
+}
@@ -0,0 +1,69 @@
+package ru.familybudget;
+
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.json.JSONArray;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.time.YearMonth;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReportBenchmark {
+
+    @Param({"10000"})
+    public int rows;
+
+    private Path database;
+    private BudgetDB budgetDB;
+    private JSONArray statistic;
+    private MonthlyTrend trend;
+    private final ChartRenderer chartRenderer = new ChartRenderer();
+    private final ExcelExporter excelExporter = new ExcelExporter();
+    private long version;
+
+    @Setup
+    public void setUp() throws Exception {
+        database = BenchmarkData.copyToTemp(BenchmarkData.database(rows));
+        budgetDB = BenchmarkData.open(database);
+        statistic = budgetDB.getMonthStatistic();
+        trend = budgetDB.getTrend(24);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        budgetDB.close();
+        BenchmarkData.delete(database);
+    }
+
+    /**
+     * A new data version on every call, so the chart is rendered instead of taken from the cache.
+     */
+    @Benchmark
+    public byte[] renderMonthChart() {
+        return chartRenderer.getMonthChart("benchmark", "Benchmark", ++version, statistic).getPng();
+    }
+
+    @Benchmark
+    public MonthlyTrend readTrend() {
+        return budgetDB.readTrend(YearMonth.now(), 24);
+    }
+
+    @Benchmark
+    public byte[] renderTrendChart() {
+        return chartRenderer.getTrendChart("benchmark", "Benchmark", ++version, trend).getPng();
+    }
+
+    @Benchmark
+    public void buildExcel() throws Exception {
+        try (SXSSFWorkbook workbook = excelExporter.build(budgetDB)) {
+            workbook.write(OutputStream.nullOutputStream());
+        }
+    }
+}
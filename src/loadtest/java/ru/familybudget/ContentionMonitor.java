@@ -0,0 +1,94 @@
+package ru.familybudget;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Monitor contention while the load runs, from ThreadMXBean: how often and how long platform threads were
+ * blocked entering a monitor, and which monitors, by class, blocked threads were found on in samples
+ * taken every {@link #SAMPLE_MILLIS} ms. BudgetDB serializes its queries on its own monitor and sqlite-jdbc
+ * on the connection's, so these show how much of the latency is waiting for the database.
+ * ThreadMXBean does not see virtual threads, but one blocked on a monitor pins its carrier thread, which it sees.
+ */
+final class ContentionMonitor implements AutoCloseable {
+    private static final long SAMPLE_MILLIS = 5;
+    // Threads of the load test itself: the Bot API stand-in and the sampler
+    private static final Pattern OWN_THREADS = Pattern.compile("HTTP-Dispatcher|bot-api-\\d+|contention-sampler");
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final Map<Long, ThreadInfo> atStart = new HashMap<>();
+    private final Map<String, Integer> samplesByLock = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "contention-sampler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile int samples;
+
+    ContentionMonitor() {
+        if (threads.isThreadContentionMonitoringSupported()) {
+            threads.setThreadContentionMonitoringEnabled(true);
+        }
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (info != null) {
+                atStart.put(info.getThreadId(), info);
+            }
+        }
+        sampler.scheduleAtFixedRate(this::sample, SAMPLE_MILLIS, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        sampler.shutdownNow();
+    }
+
+    /**
+     * Blocked counts and times of the threads alive now, since the start or since they were started.
+     */
+    String report() {
+        long count = 0;
+        long millis = 0;
+        Map<String, long[]> byPool = new HashMap<>();
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (info == null || OWN_THREADS.matcher(info.getThreadName()).matches()) {
+                continue;
+            }
+            ThreadInfo start = atStart.get(info.getThreadId());
+            long blockedCount = info.getBlockedCount() - (start != null ? start.getBlockedCount() : 0);
+            long blockedMillis = Math.max(info.getBlockedTime() - (start != null ? start.getBlockedTime() : 0), 0);
+            count += blockedCount;
+            millis += blockedMillis;
+            long[] pool = byPool.computeIfAbsent(info.getThreadName().replaceAll("-?\\d+$", ""), name -> new long[2]);
+            pool[0] += blockedCount;
+            pool[1] += blockedMillis;
+        }
+        StringBuilder report = new StringBuilder("Monitor contention: %d blocked entries, %d ms blocked%n".formatted(count, millis));
+        byPool.entrySet().stream()
+                .filter(entry -> entry.getValue()[0] > 0)
+                .sorted((a, b) -> Long.compare(b.getValue()[1], a.getValue()[1]))
+                .forEach(entry -> report.append("  %-40s %8d entries %8d ms%n".formatted(entry.getKey(), entry.getValue()[0], entry.getValue()[1])));
+        report.append("Blocked threads by monitor, in %d samples every %d ms:%n".formatted(samples, SAMPLE_MILLIS));
+        samplesByLock.entrySet().stream()
+                .sorted((a, b) -> Integer.compare(b.getValue(), a.getValue()))
+                .forEach(entry -> report.append("  %-50s %8d (%.1f threads on average)%n".formatted(
+                        entry.getKey(), entry.getValue(), entry.getValue() / (double) Math.max(samples, 1))));
+        return report.toString();
+    }
+
+    private void sample() {
+        samples++;
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds(), 0)) {
+            if (info != null && info.getThreadState() == Thread.State.BLOCKED && info.getLockName() != null
+                    && !OWN_THREADS.matcher(info.getThreadName()).matches()) {
+                samplesByLock.merge(info.getLockName().replaceFirst("@\\p{XDigit}+$", ""), 1, Integer::sum);
+            }
+        }
+    }
+}
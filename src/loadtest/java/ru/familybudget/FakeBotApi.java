@@ -0,0 +1,206 @@
+package ru.familybudget;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stand-in for the Telegram Bot API on localhost, for {@code bot.api_url} or {@code DefaultBotOptions.setBaseUrl}.
+ * Answers every method with a plausible result after the configured latency, and rejects the configured
+ * share of requests with 429 Too Many Requests and a {@code retry_after}, as Telegram does under flood control.
+ * Every accepted call that shows something to a user is passed to the listener with its chat and text.
+ */
+final class FakeBotApi implements AutoCloseable {
+    Logger logger = Logger.getLogger(FakeBotApi.class.getName());
+    private static final Set<String> MESSAGE_METHODS = Set.of("sendmessage", "sendphoto", "senddocument", "editmessagetext");
+    private static final Pattern BOUNDARY = Pattern.compile("boundary=\"?([^\";]+)\"?");
+    private static final Pattern PART_NAME = Pattern.compile("name=\"([^\"]+)\"");
+    private final HttpServer server;
+    private final AtomicInteger threadIds = new AtomicInteger();
+    // Platform threads with a name of their own, so that ContentionMonitor can tell them from the bot's
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "bot-api-" + threadIds.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final double tooManyRequestsShare;
+    private final int retryAfterSeconds;
+    private final long latencyMillis;
+    private final Consumer<Call> listener;
+    private final Map<String, LongAdder> calls = new ConcurrentSkipListMap<>();
+    private final LongAdder tooManyRequests = new LongAdder();
+    private final AtomicInteger messageIds = new AtomicInteger();
+
+    /**
+     * A call of a method that sends or edits a message.
+     *
+     * @param text text or caption, empty if there is none
+     */
+    record Call(String method, String chatId, String text, long nanos) {
+    }
+
+    /**
+     * @param port                 0 for any free port
+     * @param tooManyRequestsShare share of requests, 0 to 1, rejected with 429
+     * @param latencyMillis        mean delay before answering; the actual one is uniformly spread over 0 to twice that
+     */
+    FakeBotApi(int port, double tooManyRequestsShare, int retryAfterSeconds, long latencyMillis, Consumer<Call> listener)
+            throws IOException {
+        this.tooManyRequestsShare = tooManyRequestsShare;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.latencyMillis = latencyMillis;
+        this.listener = listener;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Base URL for the bot options: the token and the method name are appended to it.
+     */
+    String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/bot";
+    }
+
+    /**
+     * Accepted calls by method, 429s not included.
+     */
+    Map<String, Long> getCalls() {
+        Map<String, Long> result = new HashMap<>();
+        calls.forEach((method, count) -> result.put(method, count.sum()));
+        return result;
+    }
+
+    long getTooManyRequests() {
+        return tooManyRequests.sum();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String path = exchange.getRequestURI().getPath();
+            String method = path.substring(path.lastIndexOf('/') + 1);
+            Map<String, String> params = params(exchange.getRequestHeaders().getFirst("Content-Type"),
+                    exchange.getRequestBody().readAllBytes());
+            if (latencyMillis > 0) {
+                Thread.sleep(ThreadLocalRandom.current().nextLong(2 * latencyMillis + 1));
+            }
+            if (ThreadLocalRandom.current().nextDouble() < tooManyRequestsShare) {
+                tooManyRequests.increment();
+                ObjectNode error = objectMapper.createObjectNode()
+                        .put("ok", false)
+                        .put("error_code", 429)
+                        .put("description", "Too Many Requests: retry after " + retryAfterSeconds);
+                error.putObject("parameters").put("retry_after", retryAfterSeconds);
+                respond(exchange, 429, error);
+                return;
+            }
+            calls.computeIfAbsent(method, m -> new LongAdder()).increment();
+            if (MESSAGE_METHODS.contains(method.toLowerCase())) {
+                String text = params.getOrDefault("text", params.getOrDefault("caption", ""));
+                listener.accept(new Call(method, params.get("chat_id"), text, System.nanoTime()));
+            }
+            ObjectNode response = objectMapper.createObjectNode().put("ok", true);
+            response.set("result", result(method, params));
+            respond(exchange, 200, response);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+            exchange.sendResponseHeaders(500, -1);
+        }
+    }
+
+    private JsonNode result(String method, Map<String, String> params) {
+        if (method.equalsIgnoreCase("getMe")) {
+            return objectMapper.createObjectNode()
+                    .put("id", 1).put("is_bot", true).put("first_name", "Load test").put("username", "loadtest_bot");
+        }
+        if (!MESSAGE_METHODS.contains(method.toLowerCase())) {
+            return objectMapper.getNodeFactory().booleanNode(true);
+        }
+        int id = messageIds.incrementAndGet();
+        ObjectNode message = objectMapper.createObjectNode()
+                .put("message_id", params.containsKey("message_id") ? Integer.parseInt(params.get("message_id")) : id)
+                .put("date", System.currentTimeMillis() / 1000);
+        message.putObject("chat").put("id", Long.parseLong(params.getOrDefault("chat_id", "0"))).put("type", "private");
+        if (params.containsKey("text")) {
+            message.put("text", params.get("text"));
+        }
+        if (method.equalsIgnoreCase("sendPhoto")) {
+            // Lets the bot cache the chart by file_id, as it does with Telegram
+            message.putArray("photo").addObject()
+                    .put("file_id", "photo-" + id).put("file_unique_id", "photo-" + id).put("width", 800).put("height", 600);
+        } else if (method.equalsIgnoreCase("sendDocument")) {
+            message.putObject("document").put("file_id", "document-" + id).put("file_unique_id", "document-" + id);
+        }
+        return message;
+    }
+
+    private void respond(HttpExchange exchange, int status, JsonNode body) throws IOException {
+        byte[] json = objectMapper.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, json.length);
+        exchange.getResponseBody().write(json);
+    }
+
+    /**
+     * Top-level fields of a JSON body, or the fields of a multipart form except uploaded files.
+     */
+    private Map<String, String> params(String contentType, byte[] body) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        if (contentType != null && contentType.startsWith("multipart/form-data")) {
+            Matcher boundary = BOUNDARY.matcher(contentType);
+            if (!boundary.find()) {
+                return params;
+            }
+            // Latin-1 maps bytes to chars one to one, so binary parts survive the split
+            String form = new String(body, StandardCharsets.ISO_8859_1);
+            for (String part : form.split("--" + Pattern.quote(boundary.group(1)))) {
+                int headersEnd = part.indexOf("\r\n\r\n");
+                if (headersEnd < 0) {
+                    continue;
+                }
+                String headers = part.substring(0, headersEnd);
+                Matcher name = PART_NAME.matcher(headers);
+                if (!name.find() || headers.contains("filename=")) {
+                    continue;
+                }
+                String value = part.substring(headersEnd + 4).replaceFirst("\r\n$", "");
+                params.put(name.group(1), new String(value.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8));
+            }
+        } else if (body.length > 0) {
+            objectMapper.readTree(body).fields().forEachRemaining(field ->
+                    params.put(field.getKey(), field.getValue().isValueNode() ? field.getValue().asText() : field.getValue().toString()));
+        }
+        return params;
+    }
+}
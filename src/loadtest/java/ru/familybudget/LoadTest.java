@@ -0,0 +1,290 @@
+package ru.familybudget;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Drives the bot with a stream of updates ({@link UpdateStream}) at the times they are due, through
+ * {@link FamilyBudgetBot#onUpdateReceived(Update)} as polling and the webhook do, with every family
+ * database in a temporary directory and a local stand-in for the Bot API ({@link FakeBotApi}).
+ * The load is open: updates keep coming on schedule however far behind the bot is, as they do from real chats.
+ * Reports throughput, the latency from an update to the Bot API call answering it, by kind of update,
+ * the time spent in the database and monitor contention. See the loadtest profile in the POM and the README.
+ */
+public class LoadTest {
+    private static final String USAGE = """
+            java -jar target/loadtest.jar [options]
+              --families N       families of --members users each (default 20)
+              --members N        users per family (default 3)
+              --rate R           updates per second from all users together (default 20)
+              --duration S       seconds of updates (default 60)
+              --mix K=W,...      weight of each kind of update: expense or a command
+                                 (default expense=85,/today=5,/month=3,/expenses=3,/categories=2,/trend=1,/budget=1)
+              --seed N           seed of the generated stream (default 1)
+              --record FILE      write the stream to FILE before running it
+              --replay FILE      run a stream written by --record instead of generating one
+              --latency-ms M     mean latency of the Bot API stand-in (default 50)
+              --429-share P      share of Bot API requests rejected with 429, 0 to 1 (default 0)
+              --retry-after S    retry_after of those 429s (default 1)
+              --write-behind     acknowledge expenses from the write-behind journal (db.write_behind=true)
+              --max-open N       databases open at once (db.max_open, default 16)
+              --drain S          seconds to wait for answers after the last update (default 60)
+            """;
+    private static final Pattern EXPENSE_ADDED = Pattern.compile("Добавлен расход: (\\d+) руб\\.");
+    private static final long QUIET_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final Pattern HISTOGRAM_SAMPLE = Pattern.compile("^(\\w+)_(sum|count)\\{\\w+=\"([^\"]+)\"} (\\S+)$");
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        if (options == null) {
+            System.out.print(USAGE);
+            return;
+        }
+        UpdateStream stream = options.containsKey("replay")
+                ? UpdateStream.read(Path.of(options.get("replay")))
+                : UpdateStream.generate(
+                        Integer.parseInt(options.getOrDefault("families", "20")),
+                        Integer.parseInt(options.getOrDefault("members", "3")),
+                        Double.parseDouble(options.getOrDefault("rate", "20")),
+                        Integer.parseInt(options.getOrDefault("duration", "60")),
+                        parseMix(options.getOrDefault("mix", "expense=85,/today=5,/month=3,/expenses=3,/categories=2,/trend=1,/budget=1")),
+                        Long.parseLong(options.getOrDefault("seed", "1")));
+        if (options.containsKey("record")) {
+            stream.write(Path.of(options.get("record")));
+        }
+
+        Path dir = Files.createTempDirectory("familybudget-loadtest");
+        Replies replies = new Replies();
+        try (FakeBotApi api = new FakeBotApi(0,
+                Double.parseDouble(options.getOrDefault("429-share", "0")),
+                Integer.parseInt(options.getOrDefault("retry-after", "1")),
+                Long.parseLong(options.getOrDefault("latency-ms", "50")),
+                replies::answered)) {
+            List<Family> families = new ArrayList<>();
+            for (List<String> users : stream.getFamilies()) {
+                String name = "f" + families.size();
+                BudgetDB budgetDB = new BudgetDB("jdbc:sqlite:" + dir.resolve("budget_" + name + ".db"));
+                if (options.containsKey("write-behind")) {
+                    budgetDB.enableWriteBehind(500, 50, false);
+                }
+                families.add(new Family(name, users, budgetDB));
+            }
+            var registry = new FamilyRegistry(families, Integer.parseInt(options.getOrDefault("max-open", "16")), 30);
+            var botOptions = new DefaultBotOptions();
+            botOptions.setBaseUrl(api.getBaseUrl());
+            var bot = new FamilyBudgetBot(botOptions, "1:loadtest", "loadtest_bot", registry,
+                    new BackupService(dir.resolve("backup"), 1, false));
+            // Creating the databases is not part of the load
+            families.forEach(registry::open);
+
+            ObjectMapper objectMapper = new ObjectMapper();
+            List<Update> updates = new ArrayList<>(stream.getUpdates().size());
+            for (UpdateStream.Timed timed : stream.getUpdates()) {
+                updates.add(objectMapper.readValue(timed.json(), Update.class));
+            }
+            System.out.printf("Running %d updates from %d users in %d families against %s%n", updates.size(),
+                    families.stream().mapToInt(family -> family.getUserIds().size()).sum(), families.size(), dir);
+
+            ContentionMonitor contention = new ContentionMonitor();
+            long start = System.nanoTime();
+            long maxLag = 0;
+            for (int i = 0; i < updates.size(); i++) {
+                long due = start + stream.getUpdates().get(i).atNanos();
+                for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+                    LockSupport.parkNanos(wait);
+                }
+                long now = System.nanoTime();
+                maxLag = Math.max(maxLag, now - due);
+                replies.expect(updates.get(i), now);
+                bot.onUpdateReceived(updates.get(i));
+            }
+            long injected = System.nanoTime();
+            long drainUntil = injected + TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("drain", "60")));
+            // Then until the copies of the answers to the rest of the families have gone out too
+            while ((replies.waiting() > 0 || System.nanoTime() - replies.lastCall() < QUIET_NANOS)
+                    && System.nanoTime() < drainUntil) {
+                Thread.sleep(50);
+            }
+            contention.close();
+
+            System.out.printf("Offered %d updates in %.1f s (%.1f/s), at most %d ms behind schedule%n",
+                    updates.size(), (injected - start) / 1e9, updates.size() / ((injected - start) / 1e9),
+                    TimeUnit.NANOSECONDS.toMillis(maxLag));
+            System.out.print(replies.report(start));
+            System.out.println("Bot API calls " + new TreeMap<>(api.getCalls()) + ", 429s " + api.getTooManyRequests());
+            String metrics = Metrics.scrape();
+            System.out.print(histogramReport(metrics, "budget_command_duration_seconds", "Time to handle an update, by command"));
+            System.out.print(histogramReport(metrics, "budget_sql_duration_seconds", "Time in BudgetDB queries, by method"));
+            System.out.print(contention.report());
+        }
+        // The bot's HTTP client and the update dispatcher keep non-daemon threads
+        System.exit(0);
+    }
+
+    // null if the options are invalid or help was asked for
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || args[i].equals("--help")) {
+                return null;
+            }
+            String name = args[i].substring(2);
+            if (name.equals("write-behind")) {
+                options.put(name, "true");
+            } else if (i + 1 < args.length) {
+                options.put(name, args[++i]);
+            } else {
+                return null;
+            }
+        }
+        return options;
+    }
+
+    private static Map<String, Integer> parseMix(String mix) {
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.split("=");
+            weights.put(parts[0].strip(), Integer.parseInt(parts[1].strip()));
+        }
+        return weights;
+    }
+
+    /**
+     * Count, total and mean of every series of a histogram from {@link Metrics#scrape()}.
+     */
+    private static String histogramReport(String metrics, String name, String title) {
+        Map<String, double[]> series = new TreeMap<>();
+        for (String line : metrics.split("\n")) {
+            Matcher sample = HISTOGRAM_SAMPLE.matcher(line);
+            if (sample.matches() && sample.group(1).equals(name)) {
+                series.computeIfAbsent(sample.group(3), label -> new double[2])[sample.group(2).equals("count") ? 0 : 1] =
+                        Double.parseDouble(sample.group(4));
+            }
+        }
+        StringBuilder report = new StringBuilder(title).append(":\n");
+        series.forEach((label, values) -> {
+            if (values[0] > 0) {
+                report.append("  %-40s %8d calls %10.1f ms %8.2f ms mean%n".formatted(
+                        label, (long) values[0], values[1] * 1000, values[1] * 1000 / values[0]));
+            }
+        });
+        return report.toString();
+    }
+
+    /**
+     * Matches Bot API calls to the updates they answer. An expense is answered by a message to its chat
+     * with its amount in "Добавлен расход: ..." (its copies to the rest of the family are not counted);
+     * anything else by the next other message, photo or document sent to its chat, in order.
+     */
+    private static final class Replies {
+        private final Map<String, ArrayDeque<Long>> expenses = new HashMap<>();
+        private final Map<String, ArrayDeque<Expected>> others = new HashMap<>();
+        private final Map<String, List<Long>> latencies = new TreeMap<>();
+        private int waiting;
+        private int overloaded;
+        private long lastAnswer;
+        private long lastCall;
+
+        private record Expected(String kind, long nanos) {
+        }
+
+        synchronized void expect(Update update, long nanos) {
+            if (!update.hasMessage() || !update.getMessage().hasText()) {
+                return;
+            }
+            String chatId = update.getMessage().getChatId().toString();
+            String text = update.getMessage().getText();
+            Expense expense = text.contains("\n") ? null : ExpenseParser.parse(text);
+            if (expense != null) {
+                expenses.computeIfAbsent(chatId + ":" + expense.getAmount(), key -> new ArrayDeque<>()).add(nanos);
+            } else {
+                String kind = text.startsWith("/") ? text.split(" ")[0] : "other";
+                others.computeIfAbsent(chatId, key -> new ArrayDeque<>()).add(new Expected(kind, nanos));
+            }
+            waiting++;
+        }
+
+        synchronized void answered(FakeBotApi.Call call) {
+            if (call.method().equalsIgnoreCase("editMessageText")) {
+                return;
+            }
+            lastCall = call.nanos();
+            if (call.text().startsWith("Слишком много запросов")) {
+                overloaded++;
+                return;
+            }
+            boolean expense = false;
+            Matcher added = EXPENSE_ADDED.matcher(call.text());
+            while (added.find()) {
+                expense = true;
+                ArrayDeque<Long> expected = expenses.get(call.chatId() + ":" + added.group(1));
+                if (expected != null && !expected.isEmpty()) {
+                    record(UpdateStream.EXPENSE, call.nanos() - expected.poll());
+                }
+            }
+            ArrayDeque<Expected> expected = others.get(call.chatId());
+            if (!expense && expected != null && !expected.isEmpty()) {
+                Expected other = expected.poll();
+                record(other.kind(), call.nanos() - other.nanos());
+            }
+        }
+
+        synchronized int waiting() {
+            return waiting;
+        }
+
+        synchronized long lastCall() {
+            return lastCall;
+        }
+
+        synchronized String report(long start) {
+            int answered = latencies.values().stream().mapToInt(List::size).sum();
+            double seconds = (lastAnswer - start) / 1e9;
+            StringBuilder report = new StringBuilder("Answered %d in %.1f s (%.1f/s), %d unanswered, %d rejected as overload%n"
+                    .formatted(answered, seconds, answered / seconds, waiting, overloaded));
+            report.append("Latency from update to answer, ms:\n");
+            report.append("  %-12s %8s %8s %8s %8s%n".formatted("kind", "count", "p50", "p99", "max"));
+            List<Long> all = new ArrayList<>();
+            latencies.forEach((kind, values) -> {
+                report.append(latencyLine(kind, values));
+                all.addAll(values);
+            });
+            report.append(latencyLine("all", all));
+            return report.toString();
+        }
+
+        private void record(String kind, long nanos) {
+            latencies.computeIfAbsent(kind, k -> new ArrayList<>()).add(nanos);
+            lastAnswer = lastCall;
+            waiting--;
+        }
+
+        private static String latencyLine(String kind, List<Long> values) {
+            long[] sorted = values.stream().mapToLong(Long::longValue).sorted().toArray();
+            if (sorted.length == 0) {
+                return "  %-12s %8d%n".formatted(kind, 0);
+            }
+            return "  %-12s %8d %8.1f %8.1f %8.1f%n".formatted(kind, sorted.length,
+                    percentile(sorted, 0.5), percentile(sorted, 0.99), sorted[sorted.length - 1] / 1e6);
+        }
+
+        private static double percentile(long[] sorted, double p) {
+            return sorted[Math.max((int) Math.ceil(p * sorted.length) - 1, 0)] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package ru.familybudget;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Updates from the users of a set of families, each due at a time from the start of the run:
+ * generated, or read from a file written earlier, so that a run can be repeated exactly.
+ * <p>
+ * The file has one JSON object per line: first {@code {"families":[["<user id>",...],...]}}, then
+ * {@code {"at":<milliseconds from the start>,"update":<Telegram Update>}} for every update, in order.
+ * Updates captured from {@code getUpdates} or the webhook can be replayed by writing them in that form.
+ */
+final class UpdateStream {
+    static final String EXPENSE = "expense";
+    private static final String[] CATEGORIES = {"продукты", "кафе", "такси", "аптека", "бензин", "связь", "одежда", "кино"};
+    private static final long FIRST_USER_ID = 100_000;
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private final List<List<String>> families;
+    private final List<Timed> updates;
+
+    /**
+     * @param json the update as Telegram sends it
+     */
+    record Timed(long atNanos, String json) {
+    }
+
+    private UpdateStream(List<List<String>> families, List<Timed> updates) {
+        this.families = families;
+        this.updates = updates;
+    }
+
+    /**
+     * Poisson arrivals at {@code rate} updates a second from users picked at random.
+     * Expenses are {@code <amount> <category>} with an amount unique in the stream, so that the bot's
+     * "Добавлен расход: <amount> руб." can be matched to the update it answers.
+     *
+     * @param mix weight of every kind of update: {@link #EXPENSE} or a command such as {@code /today}
+     */
+    static UpdateStream generate(int familyCount, int members, double rate, int seconds, Map<String, Integer> mix, long seed) {
+        Random random = new Random(seed);
+        List<List<String>> families = new ArrayList<>(familyCount);
+        for (int i = 0; i < familyCount; i++) {
+            List<String> users = new ArrayList<>(members);
+            for (int j = 0; j < members; j++) {
+                users.add(String.valueOf(FIRST_USER_ID + (long) i * members + j));
+            }
+            families.add(users);
+        }
+        List<String> kinds = new ArrayList<>(mix.keySet());
+        int totalWeight = mix.values().stream().mapToInt(Integer::intValue).sum();
+        List<Timed> updates = new ArrayList<>();
+        long end = TimeUnit.SECONDS.toNanos(seconds);
+        int amount = 1000;
+        long at = 0;
+        for (int id = 1; ; id++) {
+            at += (long) (-Math.log(1 - random.nextDouble()) / rate * TimeUnit.SECONDS.toNanos(1));
+            if (at >= end) {
+                break;
+            }
+            List<String> family = families.get(random.nextInt(familyCount));
+            String user = family.get(random.nextInt(family.size()));
+            int pick = random.nextInt(totalWeight);
+            String kind = kinds.getLast();
+            for (String candidate : kinds) {
+                pick -= mix.get(candidate);
+                if (pick < 0) {
+                    kind = candidate;
+                    break;
+                }
+            }
+            String text = kind.equals(EXPENSE) ? amount++ + " " + CATEGORIES[random.nextInt(CATEGORIES.length)] : kind;
+            updates.add(new Timed(at, message(id, user, text)));
+        }
+        return new UpdateStream(families, updates);
+    }
+
+    static UpdateStream read(Path file) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if (header == null) {
+                throw new IOException(file + " is empty");
+            }
+            List<List<String>> families = new ArrayList<>();
+            for (JsonNode family : objectMapper.readTree(header).path("families")) {
+                List<String> users = new ArrayList<>();
+                family.forEach(user -> users.add(user.asText()));
+                families.add(users);
+            }
+            List<Timed> updates = new ArrayList<>();
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (!line.isBlank()) {
+                    JsonNode timed = objectMapper.readTree(line);
+                    updates.add(new Timed(TimeUnit.MILLISECONDS.toNanos(timed.path("at").asLong()),
+                            objectMapper.writeValueAsString(timed.path("update"))));
+                }
+            }
+            return new UpdateStream(families, updates);
+        }
+    }
+
+    void write(Path file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            ObjectNode header = objectMapper.createObjectNode();
+            var familiesNode = header.putArray("families");
+            families.forEach(family -> family.forEach(familiesNode.addArray()::add));
+            writer.write(objectMapper.writeValueAsString(header));
+            writer.newLine();
+            for (Timed update : updates) {
+                writer.write("{\"at\":" + TimeUnit.NANOSECONDS.toMillis(update.atNanos()) + ",\"update\":" + update.json() + "}");
+                writer.newLine();
+            }
+        }
+    }
+
+    List<List<String>> getFamilies() {
+        return families;
+    }
+
+    List<Timed> getUpdates() {
+        return updates;
+    }
+
+    private static String message(int id, String user, String text) {
+        ObjectNode update = objectMapper.createObjectNode().put("update_id", id);
+        ObjectNode message = update.putObject("message")
+                .put("message_id", id)
+                .put("date", System.currentTimeMillis() / 1000)
+                .put("text", text);
+        message.putObject("from").put("id", Long.parseLong(user)).put("is_bot", false).put("first_name", "user" + user);
+        message.putObject("chat").put("id", Long.parseLong(user)).put("type", "private");
+        return update.toString();
+    }
+}
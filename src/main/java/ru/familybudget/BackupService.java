@@ -0,0 +1,122 @@
+package ru.familybudget;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Takes consistent online snapshots of a database with {@code VACUUM INTO} on a separate connection,
+ * so the bot keeps writing while a backup runs.
+ * Snapshots are optionally gzipped, and only the newest {@code retention} snapshots are kept.
+ */
+public class BackupService {
+    Logger logger = Logger.getLogger(BackupService.class.getName());
+    private static final DateTimeFormatter FILE_DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss");
+    private final Path backupDir;
+    private final int retention;
+    private final boolean gzip;
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "db-backup");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public BackupService(Path backupDir, int retention, boolean gzip) {
+        this.backupDir = backupDir;
+        this.retention = retention;
+        this.gzip = gzip;
+    }
+
+    public Future<Path> backupAsync(BudgetDB budgetDB) {
+        return worker.submit(() -> backup(budgetDB));
+    }
+
+    /**
+     * Returns the newest snapshot of the database, or {@code null} if there is none yet.
+     */
+    public Path getLatest(BudgetDB budgetDB) {
+        List<Path> snapshots = listSnapshots(prefixOf(budgetDB));
+        return snapshots.isEmpty() ? null : snapshots.getLast();
+    }
+
+    private Path backup(BudgetDB budgetDB) throws SQLException, IOException {
+        Files.createDirectories(backupDir);
+        String prefix = prefixOf(budgetDB);
+        // VACUUM INTO reads on its own connection, so expenses still in the journal are committed first
+        budgetDB.flushJournal();
+        Path target = backupDir.resolve(prefix + LocalDateTime.now().format(FILE_DATE_FORMATTER) + ".db");
+        try (Connection conn = DriverManager.getConnection(budgetDB.getUrl());
+             PreparedStatement stmt = conn.prepareStatement("VACUUM INTO ?")) {
+            stmt.setString(1, target.toString());
+            stmt.execute();
+        }
+        if (gzip) {
+            target = compress(target);
+        }
+        logger.info("Database backup created: " + target);
+        deleteOldSnapshots(prefix);
+        return target;
+    }
+
+    private Path compress(Path source) throws IOException {
+        Path target = source.resolveSibling(source.getFileName() + ".gz");
+        try (InputStream in = Files.newInputStream(source);
+             OutputStream out = new GZIPOutputStream(Files.newOutputStream(target))) {
+            in.transferTo(out);
+        }
+        Files.delete(source);
+        return target;
+    }
+
+    private void deleteOldSnapshots(String prefix) {
+        List<Path> snapshots = listSnapshots(prefix);
+        for (Path snapshot : snapshots.subList(0, Math.max(0, snapshots.size() - retention))) {
+            try {
+                Files.delete(snapshot);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, e.getMessage(), e);
+            }
+        }
+    }
+
+    // Snapshot names carry a sortable timestamp, so name order is creation order
+    private List<Path> listSnapshots(String prefix) {
+        if (!Files.isDirectory(backupDir)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.list(backupDir)) {
+            return files
+                    .filter(path -> isSnapshot(path.getFileName().toString(), prefix))
+                    .sorted()
+                    .toList();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+            return List.of();
+        }
+    }
+
+    private static boolean isSnapshot(String name, String prefix) {
+        return name.startsWith(prefix) && name.length() > prefix.length() && Character.isDigit(name.charAt(prefix.length()));
+    }
+
+    private static String prefixOf(BudgetDB budgetDB) {
+        String file = Path.of(budgetDB.getUrl().substring("jdbc:sqlite:".length())).getFileName().toString();
+        return file.replaceFirst("\\.db$", "") + "_";
+    }
+}
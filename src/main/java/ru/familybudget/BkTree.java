@@ -0,0 +1,114 @@
+package ru.familybudget;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Burkhard-Keller tree over strings with the Levenshtein distance.
+ * Finding the closest key within a small distance only visits the subtrees the
+ * triangle inequality allows, instead of comparing the query with every key.
+ * Immutable once built.
+ */
+class BkTree<V> {
+    private final Node<V> root;
+
+    BkTree(Map<String, V> entries) {
+        Node<V> root = null;
+        // Sorted so that the tree, and the winner among equally close keys, does not depend on map order
+        for (String key : entries.keySet().stream().sorted().toList()) {
+            if (root == null) {
+                root = new Node<>(key, entries.get(key));
+            } else {
+                root.add(key, entries.get(key));
+            }
+        }
+        this.root = root;
+    }
+
+    /**
+     * @return the distinct values of the keys at the smallest distance from the query, if it is at most
+     * {@code maxDistance} edits; empty if no key is that close
+     */
+    List<V> closest(String query, int maxDistance) {
+        List<V> best = new ArrayList<>();
+        if (root == null) {
+            return best;
+        }
+        int bestDistance = maxDistance + 1;
+        ArrayDeque<Node<V>> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node<V> node = stack.pop();
+            int distance = distance(query, node.key);
+            if (distance <= maxDistance) {
+                if (distance < bestDistance) {
+                    best.clear();
+                    bestDistance = distance;
+                }
+                if (distance == bestDistance && !best.contains(node.value)) {
+                    best.add(node.value);
+                }
+            }
+            int from = Math.max(1, distance - maxDistance);
+            int to = Math.min(node.children.size() - 1, distance + maxDistance);
+            for (int d = from; d <= to; d++) {
+                if (node.children.get(d) != null) {
+                    stack.push(node.children.get(d));
+                }
+            }
+        }
+        return best;
+    }
+
+    static int distance(String a, String b) {
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            char c = a.charAt(i - 1);
+            for (int j = 1; j <= b.length(); j++) {
+                int substitution = previous[j - 1] + (c == b.charAt(j - 1) ? 0 : 1);
+                current[j] = Math.min(substitution, Math.min(previous[j], current[j - 1]) + 1);
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[b.length()];
+    }
+
+    private static final class Node<V> {
+        final String key;
+        final V value;
+        // Indexed by the distance between this key and the child's key, null where there is none
+        final List<Node<V>> children = new ArrayList<>();
+
+        Node(String key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        void add(String key, V value) {
+            Node<V> node = this;
+            while (true) {
+                int distance = distance(key, node.key);
+                if (distance == 0) {
+                    return;
+                }
+                while (node.children.size() <= distance) {
+                    node.children.add(null);
+                }
+                if (node.children.get(distance) == null) {
+                    node.children.set(distance, new Node<>(key, value));
+                    return;
+                }
+                node = node.children.get(distance);
+            }
+        }
+    }
+}
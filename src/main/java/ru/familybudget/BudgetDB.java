@@ -3,125 +3,814 @@ package ru.familybudget;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.*;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.YearMonth;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Public methods are synchronized: updates are handled on several threads,
+ * but they all share one SQLite connection.
+ */
 public class BudgetDB {
     Logger logger = Logger.getLogger(BudgetDB.class.getName());
     private static final String URL = "jdbc:sqlite:budget.db";
-    private Connection conn = null;
+    private static final String INSERT_EXPENSE = "INSERT INTO expense (amount, user_id, created, category_codename, raw_text) " +
+            "VALUES (?, ?, ?, ?, ?);";
+    private static final String INSERT_IMPORTED_EXPENSE = "INSERT OR IGNORE INTO expense " +
+            "(amount, user_id, created, category_codename, raw_text, import_hash) VALUES (?, ?, ?, ?, ?, ?);";
+    private static final String DELETE_EXPENSE = "UPDATE expense SET deleted_at=? WHERE id=? AND deleted_at IS NULL;";
+    private static final String RESTORE_EXPENSE = "UPDATE expense SET deleted_at=NULL WHERE id=? AND deleted_at IS NOT NULL;";
+    private static final String PURGE_EXPENSES = "DELETE FROM expense WHERE deleted_at<?;";
+    private static final String SELECT_LAST_EXPENSE_ID = "SELECT COALESCE(MAX(id), 0) FROM expense;";
+    private static final String INSERT_CHANGE = "INSERT INTO expense_change " +
+            "(expense_id, action, user_id, changed, amount, created, category_codename) VALUES (?, ?, ?, ?, ?, ?, ?) RETURNING seq;";
+    private static final String INSERT_INSERT_CHANGES = "INSERT INTO expense_change " +
+            "(expense_id, action, user_id, changed, amount, created, category_codename) " +
+            "SELECT id, 'insert', user_id, ?, amount, created, category_codename FROM expense WHERE id>? ORDER BY id;";
+    private static final String INSERT_PURGE_CHANGES = "INSERT INTO expense_change " +
+            "(expense_id, action, user_id, changed, amount, created, category_codename) " +
+            "SELECT id, 'purge', NULL, ?, amount, created, category_codename FROM expense WHERE deleted_at<? ORDER BY id;";
+    // The user's last deletion that nothing has happened to since: neither undone nor purged
+    private static final String SELECT_UNDOABLE_DELETE = "SELECT c.expense_id, c.amount, c.created, c.category_codename " +
+            "FROM expense_change c " +
+            "WHERE c.user_id=? AND c.action='delete' " +
+            "AND NOT EXISTS (SELECT 1 FROM expense_change l WHERE l.expense_id=c.expense_id AND l.seq>c.seq) " +
+            "ORDER BY c.seq DESC LIMIT 1;";
+    private static final String SELECT_CHANGES = "SELECT * FROM expense_change WHERE seq>? ORDER BY seq LIMIT ?;";
+    private static final String SELECT_CATEGORIES = "SELECT * FROM category;";
+    private static final String SELECT_ALL_EXPENSES = "SELECT strftime('%m.%Y', e.created) AS month_year, c.name, e.amount " +
+            "FROM expense e LEFT JOIN category c ON c.codename=e.category_codename " +
+            "WHERE e.deleted_at IS NULL " +
+            "ORDER BY e.created;";
+    private static final String SELECT_LAST_EXPENSES = "SELECT e.id, e.amount, e.created ,c.name " +
+            "FROM expense e LEFT JOIN category c " +
+            "ON c.codename=e.category_codename " +
+            "WHERE e.deleted_at IS NULL " +
+            "ORDER BY id DESC LIMIT 10;";
+    private static final String SELECT_EXPENSE_PAGE = "SELECT e.id, e.amount, e.created, e.user_id, c.name " +
+            "FROM expense e LEFT JOIN category c ON c.codename=e.category_codename " +
+            "WHERE e.id%s? AND e.deleted_at IS NULL%s ORDER BY e.id %s LIMIT ?;";
+    private static final String SELECT_EXPENSE = "SELECT amount, created, category_codename, user_id, raw_text " +
+            "FROM expense WHERE id=? AND deleted_at IS NULL;";
+    private static final String SELECT_TODAY_SUM = "SELECT amount FROM daily_total WHERE day=?;";
+    private static final String SELECT_USER_EXPENSE = "SELECT 1 FROM expense WHERE user_id=? AND created>=? AND created<? AND deleted_at IS NULL LIMIT 1;";
+    private static final String UPDATE_DAILY_LIMIT = "UPDATE budget SET daily_limit=? WHERE codename=?;";
+    private static final String UPDATE_MONTHLY_LIMIT = "UPDATE budget SET monthly_limit=? WHERE codename=?;";
+    private static final String SELECT_JOURNAL_SEQ = "SELECT last_seq FROM journal_state WHERE id=1;";
+    private static final String UPDATE_JOURNAL_SEQ = "UPDATE journal_state SET last_seq=? WHERE id=1;";
+    private static final String SELECT_MONTH_SUM = "SELECT SUM(amount) FROM monthly_category_total WHERE month=?;";
+    private static final String SELECT_MONTH_STATISTIC =
+            "SELECT m.category_codename, " +
+                    "c.name, " +
+                    "m.amount AS sum, " +
+                    "100.0 * m.amount / SUM(m.amount) OVER () AS percentage " +
+            "FROM monthly_category_total m LEFT JOIN category c ON c.codename=m.category_codename " +
+            "WHERE m.month=? AND m.amount<>0 " +
+            "ORDER BY sum DESC;";
+    private static final String SELECT_TREND = "SELECT m.month, c.name, m.amount " +
+            "FROM monthly_category_total m LEFT JOIN category c ON c.codename=m.category_codename " +
+            "WHERE m.month>=? AND m.month<=? AND m.amount<>0;";
+    private static final String UPDATE_DAILY_TOTAL = "INSERT INTO daily_total (day, amount) VALUES (?, ?) " +
+            "ON CONFLICT(day) DO UPDATE SET amount=amount+excluded.amount;";
+    private static final String UPDATE_MONTHLY_TOTAL = "INSERT INTO monthly_category_total (month, category_codename, amount) VALUES (?, ?, ?) " +
+            "ON CONFLICT(month, category_codename) DO UPDATE SET amount=amount+excluded.amount;";
+    // Queries that must be answered from an index, checked by QueryPlanTest along with every expensePageQuery
+    static final List<String> INDEXED_QUERIES = List.of(SELECT_EXPENSE, SELECT_TODAY_SUM, SELECT_USER_EXPENSE, SELECT_MONTH_SUM,
+            SELECT_MONTH_STATISTIC, SELECT_TREND, SELECT_UNDOABLE_DELETE, SELECT_CHANGES, SELECT_ALL_EXPENSES,
+            BudgetLedger.SELECT_DAY_TOTALS, BudgetLedger.SELECT_MONTH_TOTALS);
+    private static final Metrics.Histogram INSERT_TIMER = sqlTimer("insertExpenses");
+    private static final Metrics.Histogram IMPORT_TIMER = sqlTimer("importExpenses");
+    private static final Metrics.Histogram DELETE_TIMER = sqlTimer("deleteExpense");
+    private static final Metrics.Histogram UNDO_TIMER = sqlTimer("undoDelete");
+    private static final Metrics.Histogram PURGE_TIMER = sqlTimer("purgeDeleted");
+    private static final Metrics.Histogram EXPENSE_TIMER = sqlTimer("getExpense");
+    private static final Metrics.Histogram CHANGES_TIMER = sqlTimer("getChanges");
+    private static final Metrics.Histogram CATEGORIES_TIMER = sqlTimer("getAllCategories");
+    private static final Metrics.Histogram ALL_EXPENSES_TIMER = sqlTimer("forEachExpense");
+    private static final Metrics.Histogram LAST_EXPENSES_TIMER = sqlTimer("getLastExpenses");
+    private static final Metrics.Histogram TODAY_SUM_TIMER = sqlTimer("getTodaySum");
+    private static final Metrics.Histogram USER_EXPENSE_TIMER = sqlTimer("hasExpenses");
+    private static final Metrics.Histogram MONTH_SUM_TIMER = sqlTimer("getMonthSum");
+    private static final Metrics.Histogram MONTH_STATISTIC_TIMER = sqlTimer("getMonthStatistic");
+    private static final Metrics.Histogram BUDGET_LIMIT_TIMER = sqlTimer("setBudgetLimit");
+    private static final Metrics.Histogram TREND_TIMER = sqlTimer("getTrend");
+    private static final Metrics.Histogram EXPENSE_PAGE_TIMER = sqlTimer("getExpensePage");
+    private static final int PAGE_SIZE = 10;
+    private static final int REPORT_CACHE_SIZE = 128;
+    private static final long EXTERNAL_CHECK_INTERVAL_NANOS = 1_000_000_000L;
+    static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private final Database database;
+    private final CategoryIndex categoryIndex = new CategoryIndex();
+    private final AtomicLong dataVersion = new AtomicLong();
+    private volatile ExpenseJournal journal;
+    private final BudgetLedger ledger = new BudgetLedger();
+    private final ReportCache reports = new ReportCache(REPORT_CACHE_SIZE);
+    // Identity (inode) of the database file and PRAGMA data_version when last checked, see checkExternalChange()
+    private Object fileKey;
+    private long externalVersion;
+    private long externalCheckedAt;
 
-    public boolean connect() {
+    public BudgetDB() {
+        this(URL);
+    }
+
+    public BudgetDB(String url) {
+        this.database = new Database(url);
+    }
+
+    /**
+     * Switches inserts to write-behind mode: they are acknowledged once they are in the journal
+     * {@code <database file>.pending} and reach the database in group commits.
+     * Must be called before {@link #connect()}.
+     */
+    public void enableWriteBehind(long flushMillis, int maxBatch, boolean sync) {
+        Path path = Path.of(databaseFile() + ".pending");
+        journal = new ExpenseJournal(path, flushMillis, maxBatch, sync);
+    }
+
+    public synchronized boolean connect() {
         try {
             Class.forName("org.sqlite.JDBC");
-            conn = DriverManager.getConnection(URL);
+            SchemaMigrations.migrate(database.connection());
+            categoryIndex.reload(database.connection());
+            logger.info("Loaded " + categoryIndex.size() + " category aliases");
+            if (journal != null) {
+                journal.open(committedJournalSeq(), this::flushJournal);
+                flushJournal();
+            }
+            ledger.load(database.connection());
+            fileKey = fileKey();
+            externalVersion = database.externalVersion();
+            externalCheckedAt = System.nanoTime();
             return true;
-        } catch (SQLException | ClassNotFoundException e) {
+        } catch (SQLException | ClassNotFoundException | IOException e) {
             logger.log(Level.SEVERE, e.getMessage(), e);
         }
         return false;
     }
 
-    public void close() {
+    public synchronized void close() {
+        logger.fine(() -> "Report cache of " + getUrl() + ":\n" + reports.stats().stream()
+                .map(ReportCache.Stats::toString)
+                .collect(Collectors.joining("\n")));
+        if (journal != null) {
+            flushJournal();
+            try {
+                journal.close();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, e.getMessage(), e);
+            }
+        }
+        database.close();
+    }
+
+    public String getUrl() {
+        return database.getUrl();
+    }
+
+    private Path databaseFile() {
+        return Path.of(getUrl().substring(getUrl().indexOf("sqlite:") + "sqlite:".length()));
+    }
+
+    public synchronized Map<String, String> insertExpense(Expense expense, int userId, String rawText) {
+        expense.setRawText(rawText);
+        List<Map<String, String>> result = insertExpenses(List.of(expense), userId);
+        return result.isEmpty() ? new HashMap<>() : result.getFirst();
+    }
+
+    /**
+     * Inserts all expenses with JDBC batching in one transaction,
+     * or appends them to the journal in write-behind mode.
+     *
+     * @return amount, category name, date and budget status ({@link BudgetLedger#status(boolean)})
+     * of every inserted expense, or an empty list if the write failed
+     */
+    public synchronized List<Map<String, String>> insertExpenses(List<Expense> expenses, int userId) {
+        List<Category> categories = new ArrayList<>(expenses.size());
+        for (Expense expense : expenses) {
+            Category category = getCategory(expense.getCategory());
+            expense.setUserId(userId);
+            expense.setCategory(category.codename());
+            categories.add(category);
+        }
+        List<Map<String, String>> result = journal == null ? writeExpenses(expenses, categories, 0) : appendToJournal(expenses, categories);
+        if (!result.isEmpty()) {
+            refreshLedger();
+            for (int i = 0; i < expenses.size(); i++) {
+                Expense expense = expenses.get(i);
+                Category category = categories.get(i);
+                ledger.record(category, expense.getDate(), expense.getAmount());
+                result.get(i).put("budget", ledger.status(category.baseExpense()));
+            }
+        }
+        return result;
+    }
+
+    private List<Map<String, String>> appendToJournal(List<Expense> expenses, List<Category> categories) {
+        List<Map<String, String>> result = new ArrayList<>(expenses.size());
+        for (int i = 0; i < expenses.size(); i++) {
+            result.add(describe(expenses.get(i), categories.get(i)));
+        }
         try {
-            if (conn != null) {
-                conn.close();
+            journal.append(expenses);
+            dataVersion.incrementAndGet();
+            return result;
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Commits the journal records written so far in one transaction.
+     */
+    synchronized void flushJournal() {
+        ExpenseJournal journal = this.journal;
+        if (journal == null) {
+            return;
+        }
+        List<ExpenseJournal.Entry> batch = journal.pending();
+        if (batch.isEmpty()) {
+            return;
+        }
+        long seq = batch.getLast().seq();
+        List<Expense> expenses = batch.stream().map(ExpenseJournal.Entry::expense).toList();
+        // Journal records hold codenames resolved when they were appended
+        List<Category> categories = expenses.stream().map(expense -> resolvedCategory(expense.getCategory())).toList();
+        if (writeExpenses(expenses, categories, seq).isEmpty()) {
+            return;
+        }
+        try {
+            journal.committed(seq);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param categories resolved category of each expense
+     * @param journalSeq number of the last journal record among the expenses, or 0 if they do not come from the journal
+     */
+    private synchronized List<Map<String, String>> writeExpenses(List<Expense> expenses, List<Category> categories, long journalSeq) {
+        List<Map<String, String>> result = new ArrayList<>(expenses.size());
+        long start = System.nanoTime();
+        try {
+            database.inTransaction(() -> {
+                long lastId = lastExpenseId();
+                PreparedStatement preparedStatement = database.prepare(INSERT_EXPENSE);
+                for (int i = 0; i < expenses.size(); i++) {
+                    Expense expense = expenses.get(i);
+                    Category category = categories.get(i);
+                    int amount = expense.getAmount();
+                    String created = getDataString(expense.getDate());
+                    preparedStatement.setInt(1, amount);
+                    preparedStatement.setInt(2, expense.getUserId());
+                    preparedStatement.setString(3, created);
+                    preparedStatement.setString(4, category.codename());
+                    preparedStatement.setString(5, expense.getRawText());
+                    preparedStatement.addBatch();
+                    addAggregates(created, category.codename(), amount);
+                    result.add(describe(expense, category));
+                }
+                preparedStatement.executeBatch();
+                flushAggregates();
+                logInserts(lastId);
+                if (journalSeq > 0) {
+                    var stmt = database.prepare(UPDATE_JOURNAL_SEQ);
+                    stmt.setLong(1, journalSeq);
+                    stmt.executeUpdate();
+                }
+                return null;
+            });
+            dataVersion.incrementAndGet();
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+            result.clear();
+        } finally {
+            INSERT_TIMER.observeNanos(System.nanoTime() - start);
+        }
+        return result;
+    }
+
+    /**
+     * Inserts expenses imported from a bank statement in one transaction, skipping those imported before:
+     * the unique index on import_hash, a hash of the date, amount and raw text, lets each in only once.
+     * Goes straight to the database, also in write-behind mode.
+     *
+     * @return number of expenses inserted, or -1 if the write failed
+     */
+    public synchronized int importExpenses(List<Expense> expenses, int userId) {
+        flushJournal();
+        refreshLedger();
+        long start = System.nanoTime();
+        try {
+            List<Expense> inserted = database.inTransaction(() -> {
+                long lastId = lastExpenseId();
+                PreparedStatement stmt = database.prepare(INSERT_IMPORTED_EXPENSE);
+                List<String> created = new ArrayList<>(expenses.size());
+                for (Expense expense : expenses) {
+                    expense.setUserId(userId);
+                    expense.setCategory(getCategory(expense.getCategory()).codename());
+                    created.add(getDataString(expense.getDate()));
+                    stmt.setInt(1, expense.getAmount());
+                    stmt.setInt(2, userId);
+                    stmt.setString(3, created.getLast());
+                    stmt.setString(4, expense.getCategory());
+                    stmt.setString(5, expense.getRawText());
+                    stmt.setLong(6, importHash(created.getLast(), expense.getAmount(), expense.getRawText()));
+                    stmt.addBatch();
+                }
+                int[] counts = stmt.executeBatch();
+                List<Expense> result = new ArrayList<>();
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] > 0) {
+                        Expense expense = expenses.get(i);
+                        addAggregates(created.get(i), expense.getCategory(), expense.getAmount());
+                        result.add(expense);
+                    }
+                }
+                flushAggregates();
+                logInserts(lastId);
+                return result;
+            });
+            if (!inserted.isEmpty()) {
+                dataVersion.incrementAndGet();
+            }
+            for (Expense expense : inserted) {
+                ledger.record(resolvedCategory(expense.getCategory()), expense.getDate(), expense.getAmount());
             }
+            return inserted.size();
         } catch (SQLException e) {
             logger.log(Level.SEVERE, e.getMessage(), e);
+        } finally {
+            IMPORT_TIMER.observeNanos(System.nanoTime() - start);
         }
+        return -1;
     }
 
-    public Map<String, String> insertExpense(Expense expense, int userId, String rawText) {
-        Map<String, String> result = new HashMap<>();
+    // The first 8 bytes of SHA-256: collisions are out of the question at the size of a family budget
+    static long importHash(String created, int amount, String rawText) {
         try {
-            int amount = expense.getAmount();
-            Map<String, String> category = getCategory(expense.getCategory());
-            String sql = "INSERT INTO expense (amount, user_id, created, category_codename, raw_text) " +
-                    "VALUES (?, ?, ?, ?, ?);";
-            PreparedStatement preparedStatement = conn.prepareStatement(sql);
-            preparedStatement.setInt(1, amount);
-            preparedStatement.setInt(2, userId);
-            preparedStatement.setString(3, getDataString(expense.getDate()));
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest((created + '\n' + amount + '\n' + rawText).getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 
-            preparedStatement.setString(4, category.get("codename"));
-            preparedStatement.setString(5, rawText);
-            preparedStatement.executeUpdate();
-            result.put("amount", String.valueOf(amount));
-            result.put("category", category.get("name"));
-            result.put("date", getDataString(expense.getDate()));
+    /**
+     * A live expense with its author, or null if there is none with this id or it was deleted.
+     */
+    public synchronized Expense getExpense(long rowId) {
+        flushJournal();
+        long start = System.nanoTime();
+        try {
+            var stmt = database.prepare(SELECT_EXPENSE);
+            stmt.setLong(1, rowId);
+            try (var rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                Expense expense = new Expense();
+                expense.setAmount(rs.getInt("amount"));
+                expense.setCategory(rs.getString("category_codename"));
+                expense.setDate(LocalDateTime.parse(rs.getString("created"), DATE_FORMATTER));
+                expense.setUserId(rs.getInt("user_id"));
+                expense.setRawText(rs.getString("raw_text"));
+                return expense;
+            }
         } catch (SQLException e) {
             logger.log(Level.SEVERE, e.getMessage(), e);
+        } finally {
+            EXPENSE_TIMER.observeNanos(System.nanoTime() - start);
         }
-        return result;
+        return null;
     }
 
-    public void deleteExpense(int rowId) {
-        try (var stmt = conn.prepareStatement("DELETE FROM expense where id=?")) {
-            stmt.setInt(1, rowId);
-            stmt.executeUpdate();
+    /**
+     * Marks the expense deleted. It leaves the aggregates and every report at once but stays in the table,
+     * so that {@link #undoDelete(int)} can bring it back, until {@link #purgeDeleted(LocalDateTime)} removes it.
+     *
+     * @param userId the user who deletes it
+     * @return the entry of the change log, or null if there is no live expense with this id or the write failed
+     */
+    public synchronized ExpenseChange deleteExpense(long rowId, int userId) {
+        flushJournal();
+        refreshLedger();
+        long start = System.nanoTime();
+        try {
+            ExpenseChange deleted = database.inTransaction(() -> {
+                var select = database.prepare(SELECT_EXPENSE);
+                select.setLong(1, rowId);
+                int amount;
+                String created;
+                String category;
+                try (var rs = select.executeQuery()) {
+                    if (!rs.next()) {
+                        return null;
+                    }
+                    amount = rs.getInt("amount");
+                    created = rs.getString("created");
+                    category = rs.getString("category_codename");
+                }
+                var stmt = database.prepare(DELETE_EXPENSE);
+                stmt.setString(1, getDataString(LocalDateTime.now()));
+                stmt.setLong(2, rowId);
+                stmt.executeUpdate();
+                addAggregates(created, category, -amount);
+                flushAggregates();
+                return logChange(rowId, ExpenseChange.Action.DELETE, userId, amount, created, category);
+            });
+            if (deleted != null) {
+                ledger.record(resolvedCategory(deleted.categoryCodename()),
+                        LocalDateTime.parse(deleted.created(), DATE_FORMATTER), -deleted.amount());
+                dataVersion.incrementAndGet();
+            }
+            return deleted;
         } catch (SQLException e) {
             logger.log(Level.SEVERE, e.getMessage(), e);
+        } finally {
+            DELETE_TIMER.observeNanos(System.nanoTime() - start);
         }
+        return null;
     }
 
-    private String getDataString(LocalDateTime date) {
-        String pattern = "yyyy-MM-dd HH:mm:ss";
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern(pattern);
-        return date.format(formatter);
+    /**
+     * Restores the last expense the user deleted, unless it was restored or purged since;
+     * called again, restores the one deleted before it.
+     *
+     * @return the entry of the change log, or null if there is nothing to restore or the write failed
+     */
+    public synchronized ExpenseChange undoDelete(int userId) {
+        flushJournal();
+        refreshLedger();
+        long start = System.nanoTime();
+        try {
+            ExpenseChange restored = database.inTransaction(() -> {
+                var select = database.prepare(SELECT_UNDOABLE_DELETE);
+                select.setInt(1, userId);
+                long expenseId;
+                int amount;
+                String created;
+                String category;
+                try (var rs = select.executeQuery()) {
+                    if (!rs.next()) {
+                        return null;
+                    }
+                    expenseId = rs.getLong("expense_id");
+                    amount = rs.getInt("amount");
+                    created = rs.getString("created");
+                    category = rs.getString("category_codename");
+                }
+                var stmt = database.prepare(RESTORE_EXPENSE);
+                stmt.setLong(1, expenseId);
+                if (stmt.executeUpdate() == 0) {
+                    return null;
+                }
+                addAggregates(created, category, amount);
+                flushAggregates();
+                return logChange(expenseId, ExpenseChange.Action.RESTORE, userId, amount, created, category);
+            });
+            if (restored != null) {
+                ledger.record(resolvedCategory(restored.categoryCodename()),
+                        LocalDateTime.parse(restored.created(), DATE_FORMATTER), restored.amount());
+                dataVersion.incrementAndGet();
+            }
+            return restored;
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+        } finally {
+            UNDO_TIMER.observeNanos(System.nanoTime() - start);
+        }
+        return null;
     }
 
-    private Map<String, String> getCategory(String categoryFromText) {
-        Map<String, String> result = new HashMap<>();
+    /**
+     * Removes the expenses deleted before {@code before} for good, with a purge entry in the change log for each.
+     * They can no longer be restored; the aggregates left them when they were deleted.
+     *
+     * @return number of expenses removed, or -1 if the write failed
+     */
+    public synchronized int purgeDeleted(LocalDateTime before) {
+        long start = System.nanoTime();
         try {
-            Statement stmt = conn.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT * FROM category;");
-            while (rs.next()) {
-                List<String> rowAliases = new ArrayList<>();
-                rowAliases.add(rs.getString("name"));
-                rowAliases.addAll(List.of(rs.getString("aliases").split(", ")));
-                if (rowAliases.stream().anyMatch(categoryFromText::equals)) {
-                    result.put("codename", rs.getString("codename"));
-                    result.put("name", rs.getString("name"));
-                    return result;
+            int purged = database.inTransaction(() -> {
+                var log = database.prepare(INSERT_PURGE_CHANGES);
+                log.setString(1, getDataString(LocalDateTime.now()));
+                log.setString(2, getDataString(before));
+                log.executeUpdate();
+                var stmt = database.prepare(PURGE_EXPENSES);
+                stmt.setString(1, getDataString(before));
+                return stmt.executeUpdate();
+            });
+            logger.info("Purged " + purged + " expenses deleted before " + getDataString(before) + " from " + getUrl());
+            return purged;
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+        } finally {
+            PURGE_TIMER.observeNanos(System.nanoTime() - start);
+        }
+        return -1;
+    }
+
+    /**
+     * Entries of the change log after {@code afterSeq}, oldest first, at most {@code limit} of them.
+     * A consumer keeps the seq of the last entry it has applied and reads on from there instead of reading
+     * the expense table again. Expenses waiting in the write-behind journal are committed first.
+     */
+    public synchronized List<ExpenseChange> getChanges(long afterSeq, int limit) {
+        flushJournal();
+        List<ExpenseChange> changes = new ArrayList<>();
+        long start = System.nanoTime();
+        try {
+            var stmt = database.prepare(SELECT_CHANGES);
+            stmt.setLong(1, afterSeq);
+            stmt.setInt(2, limit);
+            try (var rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    changes.add(new ExpenseChange(rs.getLong("seq"), rs.getLong("expense_id"),
+                            ExpenseChange.Action.valueOf(rs.getString("action").toUpperCase()), rs.getInt("user_id"),
+                            rs.getString("changed"), rs.getInt("amount"), rs.getString("created"),
+                            rs.getString("category_codename")));
                 }
             }
-            rs.close();
         } catch (SQLException e) {
             logger.log(Level.SEVERE, e.getMessage(), e);
+        } finally {
+            CHANGES_TIMER.observeNanos(System.nanoTime() - start);
         }
-        result.put("codename", "other");
-        result.put("name", "прочее");
-        return result;
+        return changes;
     }
 
-    private List<String> getMounths() {
-        ArrayList<String> result = new ArrayList<>();
-        String query = "SELECT DISTINCT strftime('%m.%Y', created) as month_year FROM expense;";
-        try (var stmt = conn.createStatement()) {
-            var rs = stmt.executeQuery(query);
-            while (rs.next()) {
-                result.add(rs.getString("month_year"));
+    private ExpenseChange logChange(long expenseId, ExpenseChange.Action action, int userId,
+                                    int amount, String created, String categoryCodename) throws SQLException {
+        String changed = getDataString(LocalDateTime.now());
+        var stmt = database.prepare(INSERT_CHANGE);
+        stmt.setLong(1, expenseId);
+        stmt.setString(2, action.code());
+        stmt.setInt(3, userId);
+        stmt.setString(4, changed);
+        stmt.setInt(5, amount);
+        stmt.setString(6, created);
+        stmt.setString(7, categoryCodename);
+        try (var rs = stmt.executeQuery()) {
+            rs.next();
+            return new ExpenseChange(rs.getLong(1), expenseId, action, userId, changed, amount, created, categoryCodename);
+        }
+    }
+
+    /**
+     * Logs an insert for every expense after {@code lastId}, in the transaction that inserted them:
+     * a new rowid is always greater than the greatest one, so those are exactly the new rows.
+     */
+    private void logInserts(long lastId) throws SQLException {
+        var stmt = database.prepare(INSERT_INSERT_CHANGES);
+        stmt.setString(1, getDataString(LocalDateTime.now()));
+        stmt.setLong(2, lastId);
+        stmt.executeUpdate();
+    }
+
+    private long lastExpenseId() throws SQLException {
+        try (var rs = database.prepare(SELECT_LAST_EXPENSE_ID).executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * Keeps daily_total and monthly_category_total in step with the expense table.
+     * Adds the change to the batch; {@link #flushAggregates()} must be called
+     * inside the transaction that changes the expense.
+     */
+    private void addAggregates(String created, String categoryCodename, int amount) throws SQLException {
+        var daily = database.prepare(UPDATE_DAILY_TOTAL);
+        daily.setString(1, created.substring(0, 10));
+        daily.setInt(2, amount);
+        daily.addBatch();
+        var monthly = database.prepare(UPDATE_MONTHLY_TOTAL);
+        monthly.setString(1, created.substring(0, 7));
+        monthly.setString(2, categoryCodename);
+        monthly.setInt(3, amount);
+        monthly.addBatch();
+    }
+
+    /**
+     * Remaining budget of base and other expenses, one line per kind that has limits.
+     */
+    public synchronized String getBudgetStatus() {
+        refreshLedger();
+        String base = ledger.status(true);
+        String extra = ledger.status(false);
+        return base.isEmpty() || extra.isEmpty() ? base + extra : base + "\n" + extra;
+    }
+
+    /**
+     * Sets a limit of base ({@link BudgetLedger#BASE}) or other ({@link BudgetLedger#EXTRA}) expenses; 0 removes it.
+     */
+    public synchronized boolean setBudgetLimit(boolean baseExpense, boolean daily, int limit) {
+        long start = System.nanoTime();
+        try {
+            var stmt = database.prepare(daily ? UPDATE_DAILY_LIMIT : UPDATE_MONTHLY_LIMIT);
+            if (limit > 0) {
+                stmt.setInt(1, limit);
+            } else {
+                stmt.setNull(1, Types.INTEGER);
             }
+            stmt.setString(2, baseExpense ? BudgetLedger.BASE : BudgetLedger.EXTRA);
+            stmt.executeUpdate();
+            ledger.setLimit(baseExpense, daily, Math.max(limit, 0));
+            return true;
         } catch (SQLException e) {
-            throw new RuntimeException(e);
+            logger.log(Level.SEVERE, e.getMessage(), e);
+        } finally {
+            BUDGET_LIMIT_TIMER.observeNanos(System.nanoTime() - start);
         }
-        return result;
+        return false;
     }
 
-    public String getAllCategories() {
-        StringBuilder result = new StringBuilder();
+    // The ledger holds the totals of one day; reload it from the database after midnight
+    private void refreshLedger() {
+        if (ledger.isCurrent()) {
+            return;
+        }
+        flushJournal();
+        try {
+            ledger.load(database.connection());
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+        }
+    }
+
+    private Map<String, String> describe(Expense expense, Category category) {
+        Map<String, String> row = new HashMap<>();
+        row.put("amount", String.valueOf(expense.getAmount()));
+        row.put("category", category.name());
+        row.put("date", getDataString(expense.getDate()));
+        return row;
+    }
+
+    private long committedJournalSeq() throws SQLException {
+        try (var rs = database.prepare(SELECT_JOURNAL_SEQ).executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * Sum of the journal records not committed yet whose date starts with the prefix.
+     */
+    private int pendingSum(String datePrefix) {
+        return pendingExpenses(expense -> getDataString(expense.getDate()).startsWith(datePrefix)).stream()
+                .mapToInt(Expense::getAmount)
+                .sum();
+    }
+
+    private List<Expense> pendingExpenses(Predicate<Expense> filter) {
+        ExpenseJournal journal = this.journal;
+        if (journal == null) {
+            return List.of();
+        }
+        return journal.pending().stream().map(ExpenseJournal.Entry::expense).filter(filter).toList();
+    }
+
+    private void flushAggregates() throws SQLException {
+        database.prepare(UPDATE_DAILY_TOTAL).executeBatch();
+        database.prepare(UPDATE_MONTHLY_TOTAL).executeBatch();
+    }
+
+    private static Metrics.Histogram sqlTimer(String method) {
+        return Metrics.histogram("budget_sql_duration_seconds", "Time spent in BudgetDB queries, by method", "method", method);
+    }
+
+    private String getDataString(LocalDateTime date) {
+        return date.format(DATE_FORMATTER);
+    }
+
+    Category getCategory(String categoryFromText) {
+        Category category = categoryIndex.lookup(categoryFromText);
+        return category != null ? category : Category.OTHER;
+    }
+
+    // For codenames stored by this class: resolving them again must not count as another lookup
+    private Category resolvedCategory(String codename) {
+        return Objects.requireNonNullElse(categoryIndex.resolved(codename), Category.OTHER);
+    }
+
+    public synchronized void reloadCategories() {
         try {
-            Statement stmt = conn.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT * FROM category;");
+            categoryIndex.reload(database.connection());
+            dataVersion.incrementAndGet();
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Increases on every insert, delete or restore, and when the database changes outside the bot;
+     * lets callers cache results derived from the data.
+     */
+    public synchronized long getDataVersion() {
+        checkExternalChange();
+        return dataVersion.get();
+    }
+
+    /**
+     * Moves the data version on if the database was changed behind our back, e.g. restored from a backup:
+     * through SQLite by another process ({@code sqlite3 budget.db ".restore ..."}), seen in PRAGMA data_version,
+     * or by replacing the file, in which case the connection still reads the old one and is reopened.
+     * Runs at most once a second, so a burst of cached reads costs map lookups rather than a stat and a query each.
+     */
+    private void checkExternalChange() {
+        long now = System.nanoTime();
+        if (now - externalCheckedAt < EXTERNAL_CHECK_INTERVAL_NANOS) {
+            return;
+        }
+        externalCheckedAt = now;
+        try {
+            Object key = fileKey();
+            if (key != null && !key.equals(fileKey)) {
+                logger.warning("Database file " + databaseFile() + " was replaced, reopening it");
+                // The WAL of the old file has the same name: empty it, or it would be applied to the new one
+                try (Statement stmt = database.connection().createStatement()) {
+                    stmt.execute("PRAGMA wal_checkpoint(TRUNCATE);");
+                }
+                database.close();
+                SchemaMigrations.migrate(database.connection());
+                fileKey = key;
+                externalVersion = database.externalVersion();
+                // Expenses still in the journal go to the new file
+                refreshAfterExternalWrite();
+            }
+            long version = database.externalVersion();
+            if (version != externalVersion) {
+                externalVersion = version;
+                refreshAfterExternalWrite();
+            }
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+        }
+    }
+
+    // The bot's own jobs never get here: purges go through this connection, backups only read
+    // and Quartz commits to scheduler.db, so a scheduler tick keeps the cached reports
+    private void refreshAfterExternalWrite() throws SQLException {
+        flushJournal();
+        categoryIndex.reload(database.connection());
+        ledger.load(database.connection());
+        dataVersion.incrementAndGet();
+    }
+
+    // null for an in-memory database, or where the file system has no file identity
+    private Object fileKey() {
+        try {
+            return Files.readAttributes(databaseFile(), BasicFileAttributes.class).fileKey();
+        } catch (IOException | InvalidPathException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The result of {@code read} at the current data version, from the cache if it was read at this version before.
+     */
+    private <T> T cached(String key, Supplier<T> read, T fallback) {
+        T result = reports.get(key, getDataVersion(), read);
+        return result != null ? result : fallback;
+    }
+
+    public CategoryIndex getCategoryIndex() {
+        return categoryIndex;
+    }
+
+    public synchronized String getAllCategories() {
+        return cached("categories", this::readAllCategories, "");
+    }
+
+    synchronized String readAllCategories() {
+        StringBuilder result = new StringBuilder();
+        long start = System.nanoTime();
+        try (ResultSet rs = database.prepare(SELECT_CATEGORIES).executeQuery()) {
             while (rs.next()) {
                 result
                         .append("‣ ")
@@ -135,44 +824,56 @@ public class BudgetDB {
             }
         } catch (SQLException e) {
             logger.log(Level.SEVERE, e.getMessage(), e);
+            return null;
+        } finally {
+            CATEGORIES_TIMER.observeNanos(System.nanoTime() - start);
         }
         return result.toString();
     }
 
-    public Map<String, JSONArray> getAllExpenses() {
-        Map<String, JSONArray> result = new HashMap<>();
-
-        List<String> mounths = getMounths();
-        mounths.forEach(mounth -> {
-            String query = "SELECT c.name, e.amount FROM expense e LEFT JOIN category c ON c.codename=e.category_codename " +
-                    "WHERE strftime('%m.%Y', created) = '" + mounth + "';";
-            try (var stmt = conn.createStatement()) {
-                var rs = stmt.executeQuery(query);
-                JSONArray rows = new JSONArray();
-                while (rs.next()) {
-                    JSONObject row = new JSONObject();
-                    row.put("category", rs.getString("name"));
-                    row.put("amount", rs.getFloat("amount"));
-                    rows.put(row);
-                }
-                result.put(mounth, rows);
-            } catch (SQLException e) {
-                throw new RuntimeException(e);
+    /**
+     * Passes every expense to the consumer in one pass, ordered by date, so rows of a month come together.
+     */
+    public synchronized void forEachExpense(ExpenseRowConsumer consumer) {
+        flushJournal();
+        long start = System.nanoTime();
+        try (var rs = database.prepare(SELECT_ALL_EXPENSES).executeQuery()) {
+            while (rs.next()) {
+                consumer.accept(rs.getString("month_year"), rs.getString("name"), rs.getInt("amount"));
             }
-        });
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+        } finally {
+            ALL_EXPENSES_TIMER.observeNanos(System.nanoTime() - start);
+        }
+    }
 
-        return result;
+    public synchronized String getLastExpenses() {
+        return cached("last", this::readLastExpenses, "");
     }
 
-    public String getLastExpenses() {
+    synchronized String readLastExpenses() {
         StringBuilder result = new StringBuilder();
-        String query = "SELECT e.id, e.amount, e.created ,c.name " +
-                "FROM expense e LEFT JOIN category c " +
-                "ON c.codename=e.category_codename " +
-                "ORDER BY id DESC LIMIT 10;";
-        try (var stmt = conn.createStatement()) {
-            var rs = stmt.executeQuery(query);
-            while (rs.next()) {
+        List<Expense> pending = pendingExpenses(expense -> true);
+        int lines = 0;
+        // Not committed yet, so there is no id to delete them by
+        for (Expense expense : pending.reversed()) {
+            if (lines++ == 10) {
+                return result.toString();
+            }
+            result
+                    .append("- ")
+                    .append(expense.getAmount())
+                    .append(" руб. на ")
+                    .append(resolvedCategory(expense.getCategory()).name())
+                    .append(" от ")
+                    .append(getDataString(expense.getDate()))
+                    .append(" (сохраняется)")
+                    .append("\n");
+        }
+        long start = System.nanoTime();
+        try (var rs = database.prepare(SELECT_LAST_EXPENSES).executeQuery()) {
+            while (rs.next() && lines++ < 10) {
                 result
                         .append("- ")
                         .append(rs.getString("amount"))
@@ -185,65 +886,227 @@ public class BudgetDB {
             }
         } catch (SQLException e) {
             logger.log(Level.SEVERE, e.getMessage(), e);
+            return null;
+        } finally {
+            LAST_EXPENSES_TIMER.observeNanos(System.nanoTime() - start);
         }
         return result.toString();
     }
 
-    public String getTodaySum() {
+    /**
+     * Reads a page of the history with keyset pagination on id, so a deep page costs the same as the first one.
+     * Pages are cached until the next change of the data.
+     *
+     * @param cursor id to page from: older pages have smaller ids, newer ones greater; 0 for the newest page
+     */
+    public synchronized ExpensePage getExpensePage(ExpenseFilter filter, long cursor, boolean older) {
+        flushJournal();
+        return cached("page:" + filter.encode() + (older ? "<" : ">") + cursor,
+                () -> readExpensePage(filter, cursor, older), null);
+    }
+
+    synchronized ExpensePage readExpensePage(ExpenseFilter filter, long cursor, boolean older) {
+        // In the order of the conditions of expensePageQuery
+        List<Object> params = new ArrayList<>();
+        params.add(cursor == 0 ? Long.MAX_VALUE : cursor);
+        if (filter.categoryCodename() != null) {
+            params.add(filter.categoryCodename());
+        }
+        if (filter.userId() != null) {
+            params.add(Long.parseLong(filter.userId()));
+        }
+        if (filter.from() != null) {
+            params.add(filter.from().toString());
+            params.add(filter.to().plusDays(1).toString());
+        }
+        params.add(PAGE_SIZE + 1);
+        String sql = expensePageQuery(filter, older);
+        List<ExpensePage.Row> rows = new ArrayList<>(PAGE_SIZE + 1);
+        long start = System.nanoTime();
+        try {
+            var stmt = database.prepare(sql);
+            for (int i = 0; i < params.size(); i++) {
+                stmt.setObject(i + 1, params.get(i));
+            }
+            try (var rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    rows.add(new ExpensePage.Row(rs.getLong("id"), rs.getInt("amount"), rs.getString("name"),
+                            rs.getString("created"), rs.getLong("user_id")));
+                }
+            }
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+            return new ExpensePage(List.of(), false, false);
+        } finally {
+            EXPENSE_PAGE_TIMER.observeNanos(System.nanoTime() - start);
+        }
+        boolean more = rows.size() > PAGE_SIZE;
+        if (more) {
+            rows.removeLast();
+        }
+        if (!older) {
+            Collections.reverse(rows);
+        }
+        return new ExpensePage(List.copyOf(rows), older ? cursor != 0 : more, !older || more);
+    }
+
+    static String expensePageQuery(ExpenseFilter filter, boolean older) {
+        StringBuilder conditions = new StringBuilder();
+        if (filter.categoryCodename() != null) {
+            conditions.append(" AND e.category_codename=?");
+        }
+        if (filter.userId() != null) {
+            conditions.append(" AND e.user_id=?");
+        }
+        if (filter.from() != null) {
+            conditions.append(" AND e.created>=? AND e.created<?");
+        }
+        return SELECT_EXPENSE_PAGE.formatted(older ? "<" : ">", conditions, older ? "DESC" : "ASC");
+    }
+
+    public synchronized String getTodaySum() {
+        return cached("today:" + LocalDate.now(), this::readTodaySum, "");
+    }
+
+    synchronized String readTodaySum() {
+        long start = System.nanoTime();
+        try {
+            var stmt = database.prepare(SELECT_TODAY_SUM);
+            stmt.setString(1, LocalDate.now().toString());
+            try (ResultSet rs = stmt.executeQuery()) {
+                return String.valueOf((rs.next() ? rs.getInt(1) : 0) + pendingSum(LocalDate.now().toString()));
+            }
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+        } finally {
+            TODAY_SUM_TIMER.observeNanos(System.nanoTime() - start);
+        }
+        return null;
+    }
+
+    /**
+     * Whether the user has an expense created in {@code [from, to)}, pending ones included.
+     * A seek on idx_expense_user_created that stops at the first row.
+     */
+    public synchronized boolean hasExpenses(int userId, LocalDateTime from, LocalDateTime to) {
+        if (!pendingExpenses(expense -> expense.getUserId() == userId
+                && !expense.getDate().isBefore(from) && expense.getDate().isBefore(to)).isEmpty()) {
+            return true;
+        }
+        long start = System.nanoTime();
         try {
-            Statement stmt = conn.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT SUM(amount) FROM expense WHERE date(created)=date('now', 'localtime');");
-            if (rs.next()) {
-                return String.valueOf(rs.getInt(1));
+            var stmt = database.prepare(SELECT_USER_EXPENSE);
+            stmt.setInt(1, userId);
+            stmt.setString(2, getDataString(from));
+            stmt.setString(3, getDataString(to));
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
             }
-            rs.close();
         } catch (SQLException e) {
             logger.log(Level.SEVERE, e.getMessage(), e);
+        } finally {
+            USER_EXPENSE_TIMER.observeNanos(System.nanoTime() - start);
         }
-        return "";
+        return false;
     }
 
     public String getMonthSum() {
+        return getMonthSum(YearMonth.now());
+    }
+
+    public synchronized String getMonthSum(YearMonth month) {
+        return cached("month-sum:" + month, () -> readMonthSum(month), "");
+    }
+
+    synchronized String readMonthSum(YearMonth month) {
+        long start = System.nanoTime();
         try {
-            var rs = conn.createStatement().executeQuery("SELECT sum(amount) FROM expense WHERE date(created)>=date('now', 'start of month')");
-            if (rs.next()) {
-                return String.valueOf(rs.getInt(1));
+            var stmt = database.prepare(SELECT_MONTH_SUM);
+            stmt.setString(1, month.toString());
+            try (var rs = stmt.executeQuery()) {
+                return String.valueOf((rs.next() ? rs.getInt(1) : 0) + pendingSum(month.toString()));
             }
-            rs.close();
         } catch (SQLException e) {
             logger.log(Level.SEVERE, e.getMessage(), e);
+        } finally {
+            MONTH_SUM_TIMER.observeNanos(System.nanoTime() - start);
         }
-        return "";
+        return null;
     }
 
 
     public JSONArray getMonthStatistic() {
+        return getMonthStatistic(YearMonth.now());
+    }
+
+    /**
+     * The result is shared with later calls until the data changes and must not be modified.
+     */
+    public synchronized JSONArray getMonthStatistic(YearMonth month) {
+        flushJournal();
+        return cached("month:" + month, () -> readMonthStatistic(month), new JSONArray());
+    }
+
+    synchronized JSONArray readMonthStatistic(YearMonth month) {
         JSONArray result = new JSONArray();
-        String query =
-                "SELECT e.category_codename, " +
-                        "c.name, " +
-                        "SUM(e.amount) AS sum, " +
-                        "100.0 * SUM(e.amount) / (SELECT SUM(amount) FROM expense WHERE date(created)>=date('now', 'start of month')) AS percentage " +
-                "FROM expense e LEFT JOIN category c ON c.codename=e.category_codename " +
-                "WHERE date(created)>=date('now', 'start of month')" +
-                "GROUP BY category_codename " +
-                "ORDER BY sum DESC;";
-        try (var stmt = conn.createStatement()) {
-            var rs = stmt.executeQuery(query);
-            while (rs.next()) {
-                JSONObject row = new JSONObject();
-                row.put("name", rs.getString("name"));
-                row.put("percentage", rs.getFloat("percentage"));
-                row.put("sum", rs.getInt("sum"));
-                result.put(row);
+        long start = System.nanoTime();
+        try {
+            var stmt = database.prepare(SELECT_MONTH_STATISTIC);
+            stmt.setString(1, month.toString());
+            try (var rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    JSONObject row = new JSONObject();
+                    row.put("name", rs.getString("name"));
+                    row.put("percentage", rs.getFloat("percentage"));
+                    row.put("sum", rs.getInt("sum"));
+                    result.put(row);
+                }
             }
-            rs.close();
         } catch (SQLException e) {
             logger.log(Level.SEVERE, e.getMessage(), e);
+            return null;
+        } finally {
+            MONTH_STATISTIC_TIMER.observeNanos(System.nanoTime() - start);
         }
         return result;
     }
 
-}
+    /**
+     * Spending per category for the {@code months} months up to and including the current one,
+     * read from the monthly_category_total aggregate in one query.
+     * The result is shared with later calls until the data changes and must not be modified.
+     */
+    public synchronized MonthlyTrend getTrend(int months) {
+        flushJournal();
+        YearMonth last = YearMonth.now();
+        return cached("trend:" + last + ":" + months, () -> readTrend(last, months), new MonthlyTrend(last, months));
+    }
 
+    synchronized MonthlyTrend readTrend(YearMonth last, int months) {
+        MonthlyTrend trend = new MonthlyTrend(last, months);
+        long start = System.nanoTime();
+        try {
+            var stmt = database.prepare(SELECT_TREND);
+            stmt.setString(1, last.minusMonths(months - 1).toString());
+            stmt.setString(2, last.toString());
+            try (var rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    String name = rs.getString("name");
+                    trend.add(YearMonth.parse(rs.getString("month")), name != null ? name : Category.OTHER.name(),
+                            rs.getInt("amount"));
+                }
+            }
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+            return null;
+        } finally {
+            TREND_TIMER.observeNanos(System.nanoTime() - start);
+        }
+        return trend;
+    }
 
+    @FunctionalInterface
+    public interface ExpenseRowConsumer {
+        void accept(String month, String category, int amount);
+    }
+}
@@ -0,0 +1,135 @@
+package ru.familybudget;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.Arrays;
+
+/**
+ * Daily and monthly limits from the budget table with what has been spent against them,
+ * separately for base expenses ({@code category.is_base_expense}) and the rest.
+ * Loaded once per day; every insert and delete then updates the totals in memory,
+ * so checking an expense against its limits costs no query.
+ */
+public class BudgetLedger {
+    public static final String BASE = "base";
+    public static final String EXTRA = "extra";
+    private static final String SELECT_LIMITS = "SELECT codename, daily_limit, monthly_limit FROM budget;";
+    static final String SELECT_DAY_TOTALS = "SELECT COALESCE(c.is_base_expense, 0) AS base, SUM(e.amount) AS amount " +
+            "FROM expense e LEFT JOIN category c ON c.codename=e.category_codename " +
+            "WHERE e.created>=? AND e.created<? AND e.deleted_at IS NULL GROUP BY 1;";
+    static final String SELECT_MONTH_TOTALS = "SELECT COALESCE(c.is_base_expense, 0) AS base, SUM(m.amount) AS amount " +
+            "FROM monthly_category_total m LEFT JOIN category c ON c.codename=m.category_codename " +
+            "WHERE m.month=? GROUP BY 1;";
+    // Indexed by kind: 0 for base expenses, 1 for the rest; a limit of 0 means no limit
+    private final int[] dailyLimit = new int[2];
+    private final int[] monthlyLimit = new int[2];
+    private final long[] daySpent = new long[2];
+    private final long[] monthSpent = new long[2];
+    private LocalDate day;
+
+    synchronized void load(Connection conn) throws SQLException {
+        LocalDate today = LocalDate.now();
+        Arrays.fill(dailyLimit, 0);
+        Arrays.fill(monthlyLimit, 0);
+        Arrays.fill(daySpent, 0);
+        Arrays.fill(monthSpent, 0);
+        try (PreparedStatement stmt = conn.prepareStatement(SELECT_LIMITS);
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                int kind = switch (rs.getString("codename")) {
+                    case BASE -> 0;
+                    case EXTRA -> 1;
+                    default -> -1;
+                };
+                if (kind >= 0) {
+                    dailyLimit[kind] = rs.getInt("daily_limit");
+                    monthlyLimit[kind] = rs.getInt("monthly_limit");
+                }
+            }
+        }
+        try (PreparedStatement stmt = conn.prepareStatement(SELECT_DAY_TOTALS)) {
+            stmt.setString(1, today.toString());
+            stmt.setString(2, today.plusDays(1).toString());
+            readTotals(stmt, daySpent);
+        }
+        try (PreparedStatement stmt = conn.prepareStatement(SELECT_MONTH_TOTALS)) {
+            stmt.setString(1, YearMonth.from(today).toString());
+            readTotals(stmt, monthSpent);
+        }
+        day = today;
+    }
+
+    /**
+     * Whether the totals are for today; after midnight the ledger has to be loaded again.
+     */
+    synchronized boolean isCurrent() {
+        return LocalDate.now().equals(day);
+    }
+
+    /**
+     * Counts an inserted (positive amount) or deleted (negative amount) expense.
+     */
+    synchronized void record(Category category, LocalDateTime date, int amount) {
+        if (day == null) {
+            return;
+        }
+        int kind = kindOf(category.baseExpense());
+        if (date.toLocalDate().equals(day)) {
+            daySpent[kind] += amount;
+        }
+        if (YearMonth.from(date).equals(YearMonth.from(day))) {
+            monthSpent[kind] += amount;
+        }
+    }
+
+    synchronized void setLimit(boolean baseExpense, boolean daily, int limit) {
+        (daily ? dailyLimit : monthlyLimit)[kindOf(baseExpense)] = limit;
+    }
+
+    /**
+     * What is left of the limits of base or other expenses, with a warning for every exceeded limit;
+     * empty if the kind has no limits.
+     */
+    public synchronized String status(boolean baseExpense) {
+        int kind = kindOf(baseExpense);
+        StringBuilder result = new StringBuilder();
+        appendRemaining(result, "на сегодня", "дневной", dailyLimit[kind], daySpent[kind]);
+        appendRemaining(result, "на месяц", "месячный", monthlyLimit[kind], monthSpent[kind]);
+        if (result.isEmpty()) {
+            return "";
+        }
+        return (baseExpense ? "Базовые расходы: " : "Прочие расходы: ") + result;
+    }
+
+    private static void appendRemaining(StringBuilder result, String period, String limitName, int limit, long spent) {
+        if (limit <= 0) {
+            return;
+        }
+        if (!result.isEmpty()) {
+            result.append(", ");
+        }
+        if (spent <= limit) {
+            result.append("осталось ").append(period).append(' ').append(limit - spent).append(" из ").append(limit).append(" руб.");
+        } else {
+            result.append("⚠️ ").append(limitName).append(" лимит ").append(limit).append(" руб. превышен на ")
+                    .append(spent - limit).append(" руб.");
+        }
+    }
+
+    private static void readTotals(PreparedStatement stmt, long[] totals) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                totals[kindOf(rs.getBoolean("base"))] += rs.getLong("amount");
+            }
+        }
+    }
+
+    private static int kindOf(boolean baseExpense) {
+        return baseExpense ? 0 : 1;
+    }
+}
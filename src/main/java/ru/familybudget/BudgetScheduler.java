@@ -0,0 +1,146 @@
+package ru.familybudget;
+
+import org.quartz.CronTrigger;
+import org.quartz.JobDetail;
+import org.quartz.JobListener;
+import org.quartz.Scheduler;
+import org.quartz.SchedulerException;
+import org.quartz.Trigger;
+import org.quartz.TriggerKey;
+import org.quartz.impl.StdSchedulerFactory;
+import org.quartz.impl.matchers.GroupMatcher;
+import org.quartz.utils.ConnectionProvider;
+import org.quartz.utils.DBConnectionManager;
+import org.sqlite.SQLiteConfig;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Quartz with its jobs and triggers kept in SQLite (the qrtz_* tables of the scheduler migrations) instead of memory,
+ * so a trigger that should have fired while the bot was down is seen as misfired on the next start
+ * and handled by its misfire instruction instead of being lost.
+ * Triggers are reconciled with the configuration on every start: unchanged ones are kept with their
+ * fire times, changed ones are rescheduled and the ones no longer configured are removed.
+ */
+public class BudgetScheduler {
+    Logger logger = Logger.getLogger(BudgetScheduler.class.getName());
+    private static final String DATA_SOURCE = "scheduler";
+    private final Scheduler scheduler;
+
+    /**
+     * @param url database of the scheduler alone, created or migrated here; never a family database,
+     *            which would see every scheduler write as an external change
+     */
+    public BudgetScheduler(String url, int threads) throws SchedulerException, SQLException {
+        SQLiteConnectionProvider connections = new SQLiteConnectionProvider(url);
+        try (Connection conn = connections.getConnection()) {
+            SchemaMigrations.migrateScheduler(conn);
+        }
+        DBConnectionManager.getInstance().addConnectionProvider(DATA_SOURCE, connections);
+        Properties quartz = new Properties();
+        quartz.setProperty(StdSchedulerFactory.PROP_SCHED_INSTANCE_NAME, "FamilyBudgetBot");
+        quartz.setProperty("org.quartz.threadPool.threadCount", String.valueOf(threads));
+        quartz.setProperty(StdSchedulerFactory.PROP_JOB_STORE_CLASS, "org.quartz.impl.jdbcjobstore.JobStoreTX");
+        // Reads blobs with getBinaryStream, which sqlite-jdbc supports, instead of getBlob, which it does not
+        quartz.setProperty("org.quartz.jobStore.driverDelegateClass", "org.quartz.impl.jdbcjobstore.HSQLDBDelegate");
+        quartz.setProperty("org.quartz.jobStore.dataSource", DATA_SOURCE);
+        // Job data as strings rather than serialized objects
+        quartz.setProperty("org.quartz.jobStore.useProperties", "true");
+        quartz.setProperty("org.quartz.jobStore.misfireThreshold", "60000");
+        scheduler = new StdSchedulerFactory(quartz).getScheduler();
+    }
+
+    public void addJobListener(JobListener listener) throws SchedulerException {
+        scheduler.getListenerManager().addJobListener(listener);
+    }
+
+    /**
+     * Stores the job, replacing an earlier definition but keeping its triggers.
+     */
+    public void addJob(JobDetail job) throws SchedulerException {
+        scheduler.addJob(job, true);
+    }
+
+    /**
+     * Makes the triggers of {@code group} match {@code triggers}.
+     */
+    public void sync(String group, List<CronTrigger> triggers) throws SchedulerException {
+        Set<TriggerKey> wanted = new HashSet<>();
+        for (CronTrigger trigger : triggers) {
+            wanted.add(trigger.getKey());
+            Trigger existing = scheduler.getTrigger(trigger.getKey());
+            if (existing == null) {
+                scheduler.scheduleJob(trigger);
+                logger.info("Scheduled " + describe(trigger));
+            } else if (!sameSchedule(existing, trigger)) {
+                scheduler.rescheduleJob(trigger.getKey(), trigger);
+                logger.info("Rescheduled " + describe(trigger));
+            }
+        }
+        for (TriggerKey key : scheduler.getTriggerKeys(GroupMatcher.triggerGroupEquals(group))) {
+            if (!wanted.contains(key)) {
+                scheduler.unscheduleJob(key);
+                logger.info("Unscheduled " + key);
+            }
+        }
+    }
+
+    public void start() throws SchedulerException {
+        scheduler.start();
+    }
+
+    /**
+     * Stops firing triggers and waits for the jobs that are running.
+     */
+    public void shutdown() throws SchedulerException {
+        scheduler.shutdown(true);
+    }
+
+    private static boolean sameSchedule(Trigger existing, CronTrigger trigger) {
+        return existing instanceof CronTrigger cron
+                && cron.getCronExpression().equals(trigger.getCronExpression())
+                && cron.getTimeZone().getID().equals(trigger.getTimeZone().getID())
+                && cron.getMisfireInstruction() == trigger.getMisfireInstruction()
+                && cron.getJobKey().equals(trigger.getJobKey())
+                && Objects.equals(cron.getJobDataMap(), trigger.getJobDataMap());
+    }
+
+    private static String describe(CronTrigger trigger) {
+        return trigger.getKey() + " at '" + trigger.getCronExpression() + "' " + trigger.getTimeZone().getID();
+    }
+
+    /**
+     * A connection per transaction: Quartz closes it when done, and SQLite connections are cheap to open.
+     */
+    private static final class SQLiteConnectionProvider implements ConnectionProvider {
+        private final String url;
+        private final SQLiteConfig config = new SQLiteConfig();
+
+        SQLiteConnectionProvider(String url) {
+            this.url = url;
+            // Waits for another scheduler thread's transaction instead of failing with SQLITE_BUSY
+            config.setBusyTimeout(10_000);
+            config.enforceForeignKeys(true);
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            return config.createConnection(url);
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public void initialize() {
+        }
+    }
+}
@@ -0,0 +1,5 @@
+package ru.familybudget;
+
+public record Category(String codename, String name, boolean baseExpense) {
+    public static final Category OTHER = new Category("other", "прочее", false);
+}
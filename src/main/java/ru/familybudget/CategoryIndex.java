@@ -0,0 +1,143 @@
+package ru.familybudget;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory index of category names and aliases.
+ * Every name, alias and codename is stored in normalized form (trimmed, lower case),
+ * so resolving a category from message text is a single hash lookup.
+ * Text that matches nothing exactly is looked up in a BK-tree of the names and aliases (not the codenames,
+ * which are too short and too close to ordinary words), which tolerates a typo in words of five letters or more
+ * and two from eight. A fuzzy match only counts if it points to a single category.
+ */
+public class CategoryIndex {
+    private volatile Map<String, Category> byAlias = Map.of();
+    private volatile BkTree<Category> fuzzy = new BkTree<>(Map.of());
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder fuzzyHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public void reload(Connection conn) throws SQLException {
+        Map<String, Category> index = new HashMap<>();
+        Map<String, Category> names = new HashMap<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT codename, name, is_base_expense, aliases FROM category;")) {
+            while (rs.next()) {
+                Category category = new Category(rs.getString("codename"), rs.getString("name"), rs.getBoolean("is_base_expense"));
+                index.putIfAbsent(normalize(category.codename()), category);
+                index.putIfAbsent(normalize(category.name()), category);
+                names.putIfAbsent(normalize(category.name()), category);
+                String aliases = rs.getString("aliases");
+                if (aliases != null) {
+                    for (String alias : aliases.split(",")) {
+                        String key = normalize(alias);
+                        if (!key.isEmpty()) {
+                            index.putIfAbsent(key, category);
+                            names.putIfAbsent(key, category);
+                        }
+                    }
+                }
+            }
+        }
+        fuzzy = new BkTree<>(names);
+        byAlias = Map.copyOf(index);
+    }
+
+    /**
+     * Returns the category for the given name, alias or codename, or the only one whose names are the closest
+     * within {@link #maxTypos(int)} edits, or {@code null} if nothing matches or the closest match is ambiguous.
+     * Text that is already trimmed and in lower case is looked up without any allocation.
+     */
+    public Category lookup(String text) {
+        if (text == null) {
+            misses.increment();
+            return null;
+        }
+        String key = normalize(text);
+        Category category = byAlias.get(key);
+        if (category != null) {
+            hits.increment();
+            return category;
+        }
+        List<Category> closest = closest(key);
+        category = closest.size() == 1 ? closest.getFirst() : null;
+        if (category != null) {
+            fuzzyHits.increment();
+        } else {
+            misses.increment();
+        }
+        return category;
+    }
+
+    /**
+     * Exact match of a name, alias or codename only, or {@code null}.
+     */
+    public Category lookupExact(String text) {
+        Category category = text == null ? null : byAlias.get(normalize(text));
+        if (category != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return category;
+    }
+
+    /**
+     * The category of a codename that has already been resolved by {@link #lookup(String)}, or {@code null};
+     * not counted in the lookup statistics.
+     */
+    Category resolved(String codename) {
+        return byAlias.get(normalize(codename));
+    }
+
+    /**
+     * The categories tied for the closest match of text that has neither an exact nor an unambiguous one,
+     * to ask the user which was meant; empty otherwise.
+     */
+    public List<Category> ambiguous(String text) {
+        if (text == null || byAlias.containsKey(normalize(text))) {
+            return List.of();
+        }
+        List<Category> closest = closest(normalize(text));
+        return closest.size() > 1 ? closest : List.of();
+    }
+
+    private List<Category> closest(String key) {
+        int maxTypos = maxTypos(key.length());
+        return maxTypos > 0 ? fuzzy.closest(key, maxTypos) : List.of();
+    }
+
+    // Short words are too close to each other to guess
+    static int maxTypos(int length) {
+        return length < 5 ? 0 : length < 8 ? 1 : 2;
+    }
+
+    public int size() {
+        return byAlias.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getFuzzyHits() {
+        return fuzzyHits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    // strip() and toLowerCase() return the same instance when nothing has to change
+    static String normalize(String text) {
+        return text.strip().toLowerCase(Locale.ROOT);
+    }
+}
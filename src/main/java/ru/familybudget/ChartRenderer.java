@@ -0,0 +1,194 @@
+package ru.familybudget;
+
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.axis.CategoryLabelPositions;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.labels.StandardPieSectionLabelGenerator;
+import org.jfree.chart.plot.CategoryPlot;
+import org.jfree.chart.plot.DatasetRenderingOrder;
+import org.jfree.chart.plot.PiePlot3D;
+import org.jfree.chart.plot.PlotOrientation;
+import org.jfree.chart.renderer.category.LineAndShapeRenderer;
+import org.jfree.chart.title.TextTitle;
+import org.jfree.data.category.DefaultCategoryDataset;
+import org.jfree.data.general.DefaultPieDataset;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Renders the monthly pie chart and the trend bar chart on a dedicated headless worker thread.
+ * The last rendered chart of each kind of every family is cached together with the Telegram file_id it got
+ * on the first upload, until the title (month and date range) or the database data version changes.
+ */
+public class ChartRenderer {
+    private static final int WIDTH = 600;
+    private static final int HEIGHT = 400;
+    private static final DateTimeFormatter MONTH_LABEL = DateTimeFormatter.ofPattern("MM.yy");
+
+    static {
+        System.setProperty("java.awt.headless", "true");
+    }
+
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "chart-renderer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, Chart> cache = new ConcurrentHashMap<>();
+    private final Metrics.Histogram renderTime = Metrics.histogram("budget_chart_render_seconds",
+            "Time to render a chart to PNG", null, null);
+    private final Metrics.Counter hits = Metrics.counter("budget_chart_cache_total", "Chart cache lookups", "result", "hit");
+    private final Metrics.Counter misses = Metrics.counter("budget_chart_cache_total", "Chart cache lookups", "result", "miss");
+
+    public Chart getMonthChart(String family, String title, long dataVersion, JSONArray statistic) {
+        return getChart(family + "/month", title, dataVersion, () -> drawPng(title, statistic));
+    }
+
+    /**
+     * Stacked bars of spending per category with the rolling average of the monthly total as a line.
+     */
+    public Chart getTrendChart(String family, String title, long dataVersion, MonthlyTrend trend) {
+        return getChart(family + "/trend", title, dataVersion, () -> drawTrendPng(title, trend));
+    }
+
+    private Chart getChart(String key, String title, long dataVersion, Supplier<byte[]> draw) {
+        Chart chart = cache.get(key);
+        if (chart != null && chart.title.equals(title) && chart.dataVersion == dataVersion) {
+            hits.increment();
+            return chart;
+        }
+        misses.increment();
+        chart = new Chart(title, dataVersion, render(draw));
+        cache.put(key, chart);
+        return chart;
+    }
+
+    private byte[] render(Supplier<byte[]> draw) {
+        try {
+            return worker.submit(() -> renderPng(draw)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private byte[] renderPng(Supplier<byte[]> draw) {
+        long start = System.nanoTime();
+        try {
+            return draw.get();
+        } finally {
+            renderTime.observeNanos(System.nanoTime() - start);
+        }
+    }
+
+    private byte[] drawPng(String title, JSONArray statistic) {
+        DefaultPieDataset<String> pieDataset = new DefaultPieDataset<>();
+        for (int i = 0; i < statistic.length(); i++) {
+            JSONObject row = statistic.getJSONObject(i);
+            pieDataset.setValue(row.getString("name").toUpperCase(), row.getFloat("percentage"));
+        }
+
+        JFreeChart monthStatisticPieChart = ChartFactory.createPieChart3D(title, pieDataset, false, false, false);
+        monthStatisticPieChart.setBackgroundPaint(new Color(232, 232, 255));
+
+        TextTitle textTitle = monthStatisticPieChart.getTitle();
+        textTitle.setPaint(Color.DARK_GRAY);
+        textTitle.setFont(new Font("Arial", Font.BOLD, 26));
+
+        PiePlot3D plot = (PiePlot3D) monthStatisticPieChart.getPlot();
+        plot.setForegroundAlpha(0.6f);
+        plot.setLabelGenerator(new StandardPieSectionLabelGenerator("{0}: {1}%"));
+        plot.setLabelBackgroundPaint(null);
+        plot.setBackgroundPaint(null);
+        plot.setOutlineVisible(false);
+
+        return toPng(monthStatisticPieChart);
+    }
+
+    private byte[] drawTrendPng(String title, MonthlyTrend trend) {
+        DefaultCategoryDataset bars = new DefaultCategoryDataset();
+        DefaultCategoryDataset average = new DefaultCategoryDataset();
+        String averageLabel = "Среднее за " + MonthlyTrend.ROLLING_WINDOW + " мес.";
+        for (int month = 0; month < trend.getMonths().size(); month++) {
+            String label = trend.getMonths().get(month).format(MONTH_LABEL);
+            for (int category = 0; category < trend.getCategories().size(); category++) {
+                bars.addValue(trend.getAmount(category, month), trend.getCategories().get(category).toUpperCase(), label);
+            }
+            average.addValue(trend.getRollingAverage(month, MonthlyTrend.ROLLING_WINDOW), averageLabel, label);
+        }
+
+        JFreeChart trendChart = ChartFactory.createStackedBarChart(title, null, "руб.", bars,
+                PlotOrientation.VERTICAL, true, false, false);
+        trendChart.setBackgroundPaint(new Color(232, 232, 255));
+
+        TextTitle textTitle = trendChart.getTitle();
+        textTitle.setPaint(Color.DARK_GRAY);
+        textTitle.setFont(new Font("Arial", Font.BOLD, 26));
+
+        CategoryPlot plot = trendChart.getCategoryPlot();
+        plot.setDataset(1, average);
+        LineAndShapeRenderer line = new LineAndShapeRenderer();
+        line.setSeriesPaint(0, Color.DARK_GRAY);
+        line.setSeriesStroke(0, new BasicStroke(2.5f));
+        plot.setRenderer(1, line);
+        plot.setDatasetRenderingOrder(DatasetRenderingOrder.FORWARD);
+        plot.getDomainAxis().setCategoryLabelPositions(CategoryLabelPositions.UP_45);
+        plot.setBackgroundPaint(null);
+        plot.setOutlineVisible(false);
+
+        return toPng(trendChart);
+    }
+
+    private static byte[] toPng(JFreeChart chart) {
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            ImageIO.write(chart.createBufferedImage(WIDTH, HEIGHT), "png", os);
+            return os.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static final class Chart {
+        private final String title;
+        private final long dataVersion;
+        private final byte[] png;
+        private volatile String fileId;
+
+        private Chart(String title, long dataVersion, byte[] png) {
+            this.title = title;
+            this.dataVersion = dataVersion;
+            this.png = png;
+        }
+
+        public byte[] getPng() {
+            return png;
+        }
+
+        /**
+         * Telegram file_id of the uploaded chart, or {@code null} if it has not been uploaded yet.
+         */
+        public String getFileId() {
+            return fileId;
+        }
+
+        public void setFileId(String fileId) {
+            this.fileId = fileId;
+        }
+    }
+}
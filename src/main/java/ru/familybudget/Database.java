@@ -0,0 +1,125 @@
+package ru.familybudget;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Owns the SQLite connection and the statements prepared on it.
+ * Each query is prepared once and reused; the connection is reopened
+ * (and the statement cache rebuilt) if it was closed underneath us.
+ */
+public class Database implements AutoCloseable {
+    Logger logger = Logger.getLogger(Database.class.getName());
+    private static final String[] PRAGMAS = {
+            "PRAGMA journal_mode=WAL;",
+            "PRAGMA synchronous=NORMAL;",
+            "PRAGMA mmap_size=268435456;",
+            "PRAGMA cache_size=-8000;"
+    };
+    private final String url;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private Connection conn = null;
+
+    public Database(String url) {
+        this.url = url;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public synchronized Connection connection() throws SQLException {
+        if (conn == null || conn.isClosed()) {
+            closeStatements();
+            conn = DriverManager.getConnection(url);
+            try (Statement stmt = conn.createStatement()) {
+                for (String pragma : PRAGMAS) {
+                    stmt.execute(pragma);
+                }
+            }
+            logger.info("Opened " + url);
+        }
+        return conn;
+    }
+
+    /**
+     * Returns a cached statement for the query, preparing it on first use.
+     * Callers must not close the returned statement.
+     */
+    public synchronized PreparedStatement prepare(String sql) throws SQLException {
+        Connection connection = connection();
+        PreparedStatement stmt = statements.get(sql);
+        if (stmt == null || stmt.isClosed()) {
+            stmt = connection.prepareStatement(sql);
+            statements.put(sql, stmt);
+        }
+        return stmt;
+    }
+
+    /**
+     * PRAGMA data_version: changes whenever another connection commits to the database, never for our own commits.
+     */
+    public synchronized long externalVersion() throws SQLException {
+        try (ResultSet rs = prepare("PRAGMA data_version;").executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * Runs the work in a single transaction, rolling back if it throws.
+     */
+    public synchronized <T> T inTransaction(SqlWork<T> work) throws SQLException {
+        Connection connection = connection();
+        connection.setAutoCommit(false);
+        try {
+            T result = work.run();
+            connection.commit();
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            connection.rollback();
+            for (PreparedStatement stmt : statements.values()) {
+                stmt.clearBatch();
+            }
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closeStatements();
+        try {
+            if (conn != null) {
+                conn.close();
+            }
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+        }
+        conn = null;
+    }
+
+    private void closeStatements() {
+        for (PreparedStatement stmt : statements.values()) {
+            try {
+                stmt.close();
+            } catch (SQLException e) {
+                logger.log(Level.WARNING, e.getMessage(), e);
+            }
+        }
+        statements.clear();
+    }
+
+    @FunctionalInterface
+    public interface SqlWork<T> {
+        T run() throws SQLException;
+    }
+}
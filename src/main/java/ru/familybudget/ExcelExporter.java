@@ -0,0 +1,96 @@
+package ru.familybudget;
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.streaming.SXSSFSheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Exports all expenses to XLSX, one sheet per month.
+ * Rows are written through a windowed {@link SXSSFWorkbook}, so only {@link #WINDOW_SIZE}
+ * rows per sheet are kept in memory regardless of the history size.
+ */
+public class ExcelExporter {
+    Logger logger = Logger.getLogger(ExcelExporter.class.getName());
+    private static final int WINDOW_SIZE = 100;
+    private static final int PIPE_SIZE = 64 * 1024;
+
+    /**
+     * Builds the workbook and returns a stream with its XLSX content,
+     * or {@code null} if there are no expenses.
+     * The content is produced by a background thread while the stream is read.
+     */
+    public InputStream export(BudgetDB budgetDB) throws IOException {
+        SXSSFWorkbook workbook = build(budgetDB);
+        if (workbook.getNumberOfSheets() == 0) {
+            workbook.close();
+            return null;
+        }
+        PipedInputStream in = new PipedInputStream(PIPE_SIZE);
+        OutputStream out = new PipedOutputStream(in);
+        Thread.ofVirtual().name("excel-writer").start(() -> {
+            try (out; workbook) {
+                workbook.write(out);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, e.getMessage(), e);
+            }
+        });
+        return in;
+    }
+
+    SXSSFWorkbook build(BudgetDB budgetDB) {
+        SXSSFWorkbook workbook = new SXSSFWorkbook(WINDOW_SIZE);
+        SheetWriter writer = new SheetWriter(workbook);
+        budgetDB.forEachExpense(writer::write);
+        writer.finishSheet();
+        return workbook;
+    }
+
+    private static final class SheetWriter {
+        private final SXSSFWorkbook workbook;
+        private SXSSFSheet sheet;
+        private String month;
+        private int rowNum;
+
+        private SheetWriter(SXSSFWorkbook workbook) {
+            this.workbook = workbook;
+        }
+
+        private void write(String month, String category, int amount) {
+            if (!month.equals(this.month)) {
+                finishSheet();
+                startSheet(month);
+            }
+            Row row = sheet.createRow(++rowNum);
+            String name = category == null ? Category.OTHER.name() : category;
+            row.createCell(0).setCellValue(name.substring(0, 1).toUpperCase() + name.substring(1));
+            row.createCell(1).setCellValue(amount);
+        }
+
+        private void startSheet(String month) {
+            this.month = month;
+            sheet = workbook.createSheet(month);
+            sheet.setColumnWidth(0, 15 * 256);
+            sheet.setColumnWidth(1, 10 * 256);
+            Row header = sheet.createRow(0);
+            header.createCell(0).setCellValue("Категория");
+            header.createCell(1).setCellValue("Затраты");
+            sheet.createFreezePane(0, 1);
+            rowNum = 0;
+        }
+
+        private void finishSheet() {
+            if (sheet != null) {
+                sheet.setAutoFilter(new CellRangeAddress(0, rowNum, 0, 1));
+            }
+        }
+    }
+}
@@ -6,6 +6,8 @@ public class Expense {
     private String category = "";
     private int amount;
     private LocalDateTime date =  LocalDateTime.now();
+    private String rawText = "";
+    private int userId;
 
     public String getCategory() {
         return category;
@@ -30,4 +32,20 @@ public class Expense {
     public void setDate(LocalDateTime date) {
         this.date = date;
     }
+
+    public String getRawText() {
+        return rawText;
+    }
+
+    public void setRawText(String rawText) {
+        this.rawText = rawText;
+    }
+
+    public int getUserId() {
+        return userId;
+    }
+
+    public void setUserId(int userId) {
+        this.userId = userId;
+    }
 }
@@ -0,0 +1,21 @@
+package ru.familybudget;
+
+/**
+ * An entry of expense_change, the append-only log of changes to expenses, with the expense as it was changed.
+ * Entries are numbered by seq in commit order, so a reader can read the log in steps
+ * with {@link BudgetDB#getChanges(long, int)}, each from the last seq it has seen.
+ *
+ * @param userId  the user who made the change, 0 for a purge
+ * @param changed when the change was made, {@code yyyy-MM-dd HH:mm:ss}
+ */
+public record ExpenseChange(long seq, long expenseId, Action action, int userId, String changed,
+                            int amount, String created, String categoryCodename) {
+
+    public enum Action {
+        INSERT, DELETE, RESTORE, PURGE;
+
+        String code() {
+            return name().toLowerCase();
+        }
+    }
+}
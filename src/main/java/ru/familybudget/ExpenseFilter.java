@@ -0,0 +1,109 @@
+package ru.familybudget;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.format.ResolverStyle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Filter of the /expenses history. Every part is optional; the date range includes both ends.
+ * Encodes into a few dozen characters so it fits, with a page cursor, into the 64 bytes of callback data.
+ */
+public record ExpenseFilter(String categoryCodename, String userId, LocalDate from, LocalDate to) {
+    public static final ExpenseFilter ALL = new ExpenseFilter(null, null, null, null);
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("dd.MM.uuuu")
+            .withResolverStyle(ResolverStyle.STRICT);
+
+    /**
+     * Parses the arguments of {@code /expenses [category] [dd.MM.yyyy[-dd.MM.yyyy]] [мои | user ID]}.
+     *
+     * @throws IllegalArgumentException with a message for the user if an argument is invalid
+     */
+    public static ExpenseFilter parse(List<String> args, String fromId, Family family, CategoryIndex categories) {
+        String userId = null;
+        LocalDate from = null;
+        LocalDate to = null;
+        List<String> categoryWords = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equalsIgnoreCase("мои")) {
+                userId = fromId;
+            } else if (family.getUserIds().contains(arg)) {
+                userId = arg;
+            } else if (!arg.isEmpty() && Character.isDigit(arg.charAt(0)) && arg.contains(".")) {
+                String[] range = arg.split("-", 2);
+                try {
+                    from = LocalDate.parse(range[0], DATE_FORMATTER);
+                    to = range.length > 1 ? LocalDate.parse(range[1], DATE_FORMATTER) : from;
+                } catch (DateTimeParseException e) {
+                    throw new IllegalArgumentException("Неверный период: " + arg + ". Пример: 01.09.2024-30.09.2024");
+                }
+                if (to.isBefore(from)) {
+                    throw new IllegalArgumentException("Неверный период: " + arg + ". Начало позже конца");
+                }
+            } else {
+                categoryWords.add(arg);
+            }
+        }
+        String categoryCodename = null;
+        if (!categoryWords.isEmpty()) {
+            String text = String.join(" ", categoryWords);
+            Category category = categories.lookup(text);
+            if (category == null) {
+                throw new IllegalArgumentException("Неизвестная категория: " + text);
+            }
+            categoryCodename = category.codename();
+        }
+        return new ExpenseFilter(categoryCodename, userId, from, to);
+    }
+
+    /**
+     * {@code category:user:from:to}, with empty parts where there is no filter and dates as yyyyMMdd.
+     */
+    public String encode() {
+        return String.join(":",
+                categoryCodename == null ? "" : categoryCodename,
+                userId == null ? "" : userId,
+                from == null ? "" : from.format(DateTimeFormatter.BASIC_ISO_DATE),
+                to == null ? "" : to.format(DateTimeFormatter.BASIC_ISO_DATE));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the text was not produced by {@link #encode()}
+     */
+    public static ExpenseFilter decode(String text) {
+        String[] parts = text.split(":", -1);
+        if (parts.length != 4 || parts[2].isEmpty() != parts[3].isEmpty()
+                || !parts[1].chars().allMatch(Character::isDigit)) {
+            throw new IllegalArgumentException("Invalid expense filter: " + text);
+        }
+        try {
+            return new ExpenseFilter(
+                    parts[0].isEmpty() ? null : parts[0],
+                    parts[1].isEmpty() ? null : parts[1],
+                    parts[2].isEmpty() ? null : LocalDate.parse(parts[2], DateTimeFormatter.BASIC_ISO_DATE),
+                    parts[3].isEmpty() ? null : LocalDate.parse(parts[3], DateTimeFormatter.BASIC_ISO_DATE));
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid expense filter: " + text, e);
+        }
+    }
+
+    /**
+     * Human-readable description, e.g. "еда, пользователь 123, 01.09.2024 - 30.09.2024".
+     */
+    public String describe(CategoryIndex categories) {
+        List<String> parts = new ArrayList<>();
+        if (categoryCodename != null) {
+            Category category = categories.lookup(categoryCodename);
+            parts.add(category != null ? category.name() : categoryCodename);
+        }
+        if (userId != null) {
+            parts.add("пользователь " + userId);
+        }
+        if (from != null) {
+            parts.add(from.format(DATE_FORMATTER) + " - " + to.format(DATE_FORMATTER));
+        }
+        return parts.isEmpty() ? "все" : String.join(", ", parts);
+    }
+}
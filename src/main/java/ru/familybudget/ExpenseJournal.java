@@ -0,0 +1,175 @@
+package ru.familybudget;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Write-behind buffer of one family database.
+ * Expenses are appended to a small append-only file (one JSON object per line) and kept in memory
+ * until {@link BudgetDB} commits them in one transaction, every {@code flushMillis} or as soon as
+ * {@code maxBatch} records are pending. Records are numbered; the last committed number is stored
+ * in the journal_state table in the same transaction, so a replay never inserts an expense twice.
+ */
+class ExpenseJournal {
+    Logger logger = Logger.getLogger(ExpenseJournal.class.getName());
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "journal-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Path path;
+    private final long flushMillis;
+    private final int maxBatch;
+    private final boolean sync;
+    private final List<Entry> pending = new ArrayList<>();
+    private FileChannel channel;
+    private Runnable flush;
+    private ScheduledFuture<?> schedule;
+    private long lastSeq;
+
+    /**
+     * @param sync force every append to the storage device; without it the journal survives
+     *             a crash of the bot but not a power loss
+     */
+    ExpenseJournal(Path path, long flushMillis, int maxBatch, boolean sync) {
+        this.path = path;
+        this.flushMillis = flushMillis;
+        this.maxBatch = maxBatch;
+        this.sync = sync;
+    }
+
+    /**
+     * Loads records left by a previous run that are newer than {@code committedSeq}
+     * and starts calling {@code flush} periodically.
+     */
+    synchronized void open(long committedSeq, Runnable flush) throws IOException {
+        pending.clear();
+        lastSeq = committedSeq;
+        if (Files.exists(path)) {
+            for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                Entry entry = parse(line);
+                if (entry != null && entry.seq() > committedSeq) {
+                    pending.add(entry);
+                    lastSeq = Math.max(lastSeq, entry.seq());
+                }
+            }
+        }
+        if (!pending.isEmpty()) {
+            logger.info("Replaying " + pending.size() + " expenses from " + path);
+        }
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.flush = flush;
+        schedule = FLUSHER.scheduleWithFixedDelay(flush, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Makes the expenses durable in the journal; they are committed to the database later.
+     */
+    synchronized void append(List<Expense> expenses) throws IOException {
+        if (channel == null) {
+            throw new IOException("Journal " + path + " is closed");
+        }
+        StringBuilder lines = new StringBuilder();
+        List<Entry> entries = new ArrayList<>(expenses.size());
+        for (Expense expense : expenses) {
+            Entry entry = new Entry(lastSeq + entries.size() + 1, expense);
+            lines.append(format(entry)).append('\n');
+            entries.add(entry);
+        }
+        write(lines.toString());
+        lastSeq += entries.size();
+        pending.addAll(entries);
+        if (pending.size() >= maxBatch) {
+            FLUSHER.execute(flush);
+        }
+    }
+
+    /**
+     * Returns the records not committed yet, oldest first.
+     */
+    synchronized List<Entry> pending() {
+        return List.copyOf(pending);
+    }
+
+    /**
+     * Forgets the records up to {@code seq}. The file is emptied once nothing is pending;
+     * until then committed records stay in it and are skipped on replay.
+     */
+    synchronized void committed(long seq) throws IOException {
+        pending.removeIf(entry -> entry.seq() <= seq);
+        if (pending.isEmpty()) {
+            channel.truncate(0);
+        }
+    }
+
+    synchronized void close() throws IOException {
+        if (schedule != null) {
+            schedule.cancel(false);
+            schedule = null;
+        }
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void write(String lines) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(lines.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        if (sync) {
+            channel.force(false);
+        }
+    }
+
+    private static String format(Entry entry) {
+        Expense expense = entry.expense();
+        return new JSONObject()
+                .put("seq", entry.seq())
+                .put("user", expense.getUserId())
+                .put("amount", expense.getAmount())
+                .put("category", expense.getCategory())
+                .put("created", expense.getDate().format(BudgetDB.DATE_FORMATTER))
+                .put("raw", expense.getRawText())
+                .toString();
+    }
+
+    private Entry parse(String line) {
+        if (line.isBlank()) {
+            return null;
+        }
+        try {
+            JSONObject json = new JSONObject(line);
+            Expense expense = new Expense();
+            expense.setUserId(json.getInt("user"));
+            expense.setAmount(json.getInt("amount"));
+            expense.setCategory(json.getString("category"));
+            expense.setDate(LocalDateTime.parse(json.getString("created"), BudgetDB.DATE_FORMATTER));
+            expense.setRawText(json.optString("raw"));
+            return new Entry(json.getLong("seq"), expense);
+        } catch (RuntimeException e) {
+            // The last line is torn if the process died in the middle of a write
+            logger.warning("Skipping unreadable journal record in " + path + ": " + line);
+            return null;
+        }
+    }
+
+    record Entry(long seq, Expense expense) {
+    }
+}
@@ -0,0 +1,25 @@
+package ru.familybudget;
+
+import java.util.List;
+
+/**
+ * One page of the expense history, newest first.
+ * The next pages are read relative to the first and last id, never with an offset.
+ */
+public record ExpensePage(List<Row> rows, boolean hasNewer, boolean hasOlder) {
+
+    public boolean isEmpty() {
+        return rows.isEmpty();
+    }
+
+    public long firstId() {
+        return rows.getFirst().id();
+    }
+
+    public long lastId() {
+        return rows.getLast().id();
+    }
+
+    public record Row(long id, int amount, String category, String created, long userId) {
+    }
+}
@@ -0,0 +1,123 @@
+package ru.familybudget;
+
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.ResolverStyle;
+import java.util.Map;
+
+/**
+ * Parses expense messages of the form {@code <amount> [category] [date]} in a single pass.
+ * The amount may have up to two decimals ({@code 99.90} or {@code 99,90}) and is rounded to whole rubles.
+ * The date is {@code dd.MM.yyyy} or one of "сегодня", "вчера", "позавчера"; without it the expense is dated now.
+ */
+public final class ExpenseParser {
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("dd.MM.uuuu")
+            .withResolverStyle(ResolverStyle.STRICT);
+    private static final Map<String, Integer> DAYS_AGO = Map.of("сегодня", 0, "вчера", 1, "позавчера", 2);
+
+    private ExpenseParser() {
+    }
+
+    /**
+     * @return the expense, or {@code null} if the text is not an expense or the amount or date is invalid
+     */
+    public static Expense parse(String text) {
+        int length = text.length();
+        int i = 0;
+        long kopecks = 0;
+        while (i < length && isDigit(text.charAt(i))) {
+            kopecks = kopecks * 10 + (text.charAt(i++) - '0');
+            if (kopecks > Integer.MAX_VALUE) {
+                return null;
+            }
+        }
+        if (i == 0) {
+            return null;
+        }
+        kopecks *= 100;
+        if (i + 1 < length && (text.charAt(i) == '.' || text.charAt(i) == ',') && isDigit(text.charAt(i + 1))) {
+            kopecks += (text.charAt(i + 1) - '0') * 10;
+            i += 2;
+            if (i < length && isDigit(text.charAt(i))) {
+                kopecks += text.charAt(i++) - '0';
+            }
+            if (i < length && isDigit(text.charAt(i))) {
+                return null;
+            }
+        }
+        long amount = (kopecks + 50) / 100;
+        if (amount <= 0 || amount > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        int start = skipWhitespace(text, i);
+        int end = length;
+        while (end > start && Character.isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        // The last word is the date if it looks like one
+        int lastWord = end;
+        while (lastWord > start && !Character.isWhitespace(text.charAt(lastWord - 1))) {
+            lastWord--;
+        }
+        Expense result = new Expense();
+        result.setAmount((int) amount);
+        if (lastWord < end) {
+            String word = text.substring(lastWord, end);
+            LocalDate date;
+            try {
+                date = parseDate(word);
+            } catch (DateTimeException e) {
+                return null;
+            }
+            if (date != null) {
+                result.setDate(LocalDateTime.of(date, LocalTime.now()));
+                end = lastWord;
+                while (end > start && Character.isWhitespace(text.charAt(end - 1))) {
+                    end--;
+                }
+            }
+        }
+        result.setCategory(text.substring(start, end));
+        return result;
+    }
+
+    /**
+     * @return the date, or {@code null} if the word is not a date
+     * @throws DateTimeException if the word has the shape of a date that does not exist
+     */
+    private static LocalDate parseDate(String word) {
+        if (isDateShaped(word)) {
+            return LocalDate.parse(word, DATE_FORMATTER);
+        }
+        Integer daysAgo = DAYS_AGO.get(CategoryIndex.normalize(word));
+        return daysAgo == null ? null : LocalDate.now().minusDays(daysAgo);
+    }
+
+    // dd.dd.dddd
+    private static boolean isDateShaped(String word) {
+        if (word.length() != 10) {
+            return false;
+        }
+        for (int i = 0; i < 10; i++) {
+            if (i == 2 || i == 5 ? word.charAt(i) != '.' : !isDigit(word.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipWhitespace(String text, int i) {
+        while (i < text.length() && Character.isWhitespace(text.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,35 @@
+package ru.familybudget;
+
+import java.util.List;
+
+/**
+ * A household: the chats that share one budget and the database it is kept in.
+ */
+public class Family {
+    private final String name;
+    private final List<String> userIds;
+    private final BudgetDB budgetDB;
+
+    public Family(String name, List<String> userIds, BudgetDB budgetDB) {
+        this.name = name;
+        this.userIds = List.copyOf(userIds);
+        this.budgetDB = budgetDB;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<String> getUserIds() {
+        return userIds;
+    }
+
+    BudgetDB getBudgetDB() {
+        return budgetDB;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
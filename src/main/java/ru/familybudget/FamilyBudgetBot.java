@@ -1,66 +1,77 @@
 package ru.familybudget;
 
-import org.apache.poi.hssf.usermodel.HSSFWorkbook;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.ss.util.CellRangeAddress;
-import org.jfree.chart.ChartFactory;
-import org.jfree.chart.JFreeChart;
-import org.jfree.chart.labels.StandardPieSectionLabelGenerator;
-import org.jfree.chart.plot.PiePlot3D;
-import org.jfree.chart.title.TextTitle;
-import org.jfree.data.general.DefaultPieDataset;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
 import org.telegram.telegrambots.bots.TelegramLongPollingBot;
+import org.telegram.telegrambots.meta.api.methods.AnswerCallbackQuery;
+import org.telegram.telegrambots.meta.api.methods.GetFile;
 import org.telegram.telegrambots.meta.api.methods.send.SendDocument;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
 import org.telegram.telegrambots.meta.api.methods.send.SendPhoto;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
+import org.telegram.telegrambots.meta.api.objects.CallbackQuery;
+import org.telegram.telegrambots.meta.api.objects.Document;
 import org.telegram.telegrambots.meta.api.objects.InputFile;
+import org.telegram.telegrambots.meta.api.objects.Message;
 import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 
-import javax.imageio.ImageIO;
-import java.awt.*;
 import java.io.*;
-import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
-import java.time.LocalTime;
+import java.time.YearMonth;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class FamilyBudgetBot extends TelegramLongPollingBot {
     Logger logger = Logger.getLogger(FamilyBudgetBot.class.getName());
     private SimpleDateFormat dateFormat = new SimpleDateFormat("dd.MM.yyyy");
-    private static final String CATEGORY = "category";
-    private static final String AMOUNT = "amount";
+    private static final Set<String> COMMANDS = Set.of("/today", "/month", "/trend", "/budget", "/categories", "/expenses", "/backup", "/excel", "/del", "/undo");
+    private static final Set<String> HEAVY_COMMANDS = Set.of("/month", "/trend", "/excel", "/backup", "/import");
+    private static final String EXPENSE_ADDED = "expense-added";
+    // Callback data of the /expenses paging buttons: e:<o|n>:<cursor>:<filter>
+    private static final String EXPENSES_CALLBACK = "e:";
+    private static final int MAX_CALLBACK_DATA_BYTES = 64;
+    private static final int TREND_DEFAULT_MONTHS = 12;
+    private static final int TREND_MAX_MONTHS = 24;
+    private static final DateTimeFormatter TREND_MONTH = DateTimeFormatter.ofPattern("MM.yyyy");
+    // Bots may not download larger files through the Bot API
+    private static final long IMPORT_MAX_SIZE = 20L * 1024 * 1024;
+    private static final long IMPORT_PROGRESS_INTERVAL_MS = 2000;
+    private static final Pattern CSV_SEPARATOR = Pattern.compile("\\s*[;\t]\\s*");
     private final String botUsername;
-    private final String[] userIdArray;
-    private final BudgetDB budgetDB;
+    private final FamilyRegistry families;
+    private final UpdateDispatcher dispatcher;
+    private final BackupService backupService;
+    private final OutboundSender sender = new OutboundSender(this);
 
-    FamilyBudgetBot(String botToken, String botUsername, String userIdArray) {
-        super(botToken);
-        this.botUsername = botUsername;
-        this.userIdArray = userIdArray.split(",");
+    FamilyBudgetBot(String botToken, String botUsername, FamilyRegistry families, BackupService backupService) {
+        this(new DefaultBotOptions(), botToken, botUsername, families, backupService);
+    }
 
-        logger.info("Connect to Budget Database");
-        budgetDB = new BudgetDB();
-        if (budgetDB.connect()) {
-            logger.info("Connected to database");
-        } else {
-            budgetDB.close();
-            logger.severe("Error: cannot connect to database");
-            System.exit(0);
-        }
+    /**
+     * @param options e.g. with the base URL of a local Bot API server instead of api.telegram.org
+     */
+    FamilyBudgetBot(DefaultBotOptions options, String botToken, String botUsername, FamilyRegistry families,
+                    BackupService backupService) {
+        super(options, botToken);
+        this.botUsername = botUsername;
+        this.families = families;
+        this.backupService = backupService;
+        logger.info("Serving " + families.getFamilies().size() + " families");
+        dispatcher = new UpdateDispatcher(this::handleUpdate, FamilyBudgetBot::commandOf, HEAVY_COMMANDS);
     }
 
     @Override
@@ -70,58 +81,311 @@ public class FamilyBudgetBot extends TelegramLongPollingBot {
 
     @Override
     public void onUpdateReceived(Update update) {
+        if (!dispatcher.dispatch(update)) {
+            long chatId = UpdateDispatcher.chatIdOf(update);
+            logger.warning("Update queue is full, dropping update from " + chatId);
+            sendMessage(String.valueOf(chatId), "Слишком много запросов, попробуйте позже");
+        }
+    }
+
+    private static String commandOf(Update update) {
+        if (update.hasMessage() && update.getMessage().hasText()) {
+            String command = update.getMessage().getText().split(" ")[0];
+            if (!command.startsWith("/")) {
+                return "expense";
+            }
+            command = command.startsWith("/del") ? "/del" : command;
+            return COMMANDS.contains(command) ? command : "unknown";
+        }
+        if (update.hasCallbackQuery() && update.getCallbackQuery().getData() != null
+                && update.getCallbackQuery().getData().startsWith(EXPENSES_CALLBACK)) {
+            return "/expenses";
+        }
+        if (update.hasMessage() && update.getMessage().hasDocument()) {
+            return "/import";
+        }
+        return "";
+    }
+
+    private void handleUpdate(Update update) {
+        // The family database must not be closed by the registry while the update is handled
+        Family family = families.familyOf(String.valueOf(UpdateDispatcher.chatIdOf(update)));
+        if (family == null) {
+            route(update);
+            return;
+        }
+        families.acquire(family);
+        try {
+            route(update);
+        } finally {
+            families.release(family);
+        }
+    }
+
+    private void route(Update update) {
         if (update.hasMessage() && update.getMessage().hasText()) {
             String fromId = update.getMessage().getChatId().toString();
-            if (Arrays.asList(userIdArray).contains(fromId)) {
+            Family family = families.familyOf(fromId);
+            if (family != null) {
+                BudgetDB budgetDB = families.open(family);
                 String text = update.getMessage().getText();
-                logger.info("Handle message from " + fromId + ": " + text);
+                logger.fine(() -> "Handle message from " + fromId + ": " + text);
                 switch (text.split(" ")[0]) {
                     case "/today" -> sendMessage(fromId, "Расходы сегодня: " + budgetDB.getTodaySum() + " руб.");
-                    case "/month" -> sendMonthStatistic(fromId);
+                    case "/month" -> sendMonthStatistic(fromId, family, YearMonth.now());
+                    case "/trend" -> sendTrend(fromId, family, text);
+                    case "/budget" -> handleBudget(fromId, budgetDB, text);
                     case "/categories" -> sendMessage(fromId, "Категории:\n" + budgetDB.getAllCategories());
-                    case "/expenses" -> sendMessage(fromId, "Последние расходы:\n" + budgetDB.getLastExpenses());
-                    case "/backup" -> sendBackup(fromId);
-                    case "/excel" -> sendExcel(fromId);
-                    case String s when s.matches("/del\\d+") -> {
-                        budgetDB.deleteExpense(Integer.parseInt(s.split("/del")[1]));
-                        sendMessage(fromId, "Запись о расходе удалена");
-                    }
-                    default -> writeData(fromId, text);
+                    case "/expenses" -> sendExpenses(fromId, family, text);
+                    case "/backup" -> sendBackup(fromId, family);
+                    case "/excel" -> sendExcel(fromId, family);
+                    case "/undo" -> undoDelete(fromId, family);
+                    case String s when s.matches("/del\\d{1,18}") -> deleteExpense(fromId, family, Long.parseLong(s.substring(4)));
+                    default -> writeData(fromId, family, text);
                 }
             } else {
                 sendMessage(fromId, "Доступ запрещен");
             }
+        } else if (update.hasMessage() && update.getMessage().hasDocument()) {
+            String fromId = update.getMessage().getChatId().toString();
+            Family family = families.familyOf(fromId);
+            if (family != null) {
+                importStatement(fromId, family, update.getMessage().getDocument());
+            } else {
+                sendMessage(fromId, "Доступ запрещен");
+            }
+        } else if (update.hasCallbackQuery()) {
+            handleCallback(update.getCallbackQuery());
+        }
+    }
+
+    /**
+     * Imports the expenses of a bank statement sent as a CSV or OFX file, reporting progress
+     * by editing a single status message.
+     */
+    private void importStatement(String chatId, Family family, Document document) {
+        if (document.getFileSize() != null && document.getFileSize() > IMPORT_MAX_SIZE) {
+            sendMessage(chatId, "Файл слишком большой: можно загрузить выписку до 20 МБ");
+            return;
+        }
+        String fileName = document.getFileName() == null ? "" : document.getFileName();
+        logger.info("Importing statement " + fileName + " from " + chatId);
+        Integer statusId = sender.execute(chatId, new SendMessage(chatId, "Импорт выписки " + fileName + "..."))
+                .thenApply(Message::getMessageId)
+                .exceptionally(e -> null)
+                .join();
+        BudgetDB budgetDB = families.open(family);
+        StatementImporter.Progress result;
+        try (InputStream in = downloadFileAsStream(execute(new GetFile(document.getFileId())))) {
+            long[] lastEdit = {System.currentTimeMillis()};
+            result = new StatementImporter(budgetDB).importStatement(in, fileName, Integer.parseInt(chatId), progress -> {
+                if (System.currentTimeMillis() - lastEdit[0] >= IMPORT_PROGRESS_INTERVAL_MS) {
+                    lastEdit[0] = System.currentTimeMillis();
+                    editStatus(chatId, statusId, "Импорт выписки " + fileName + ": прочитано операций "
+                            + progress.read() + ", добавлено расходов " + progress.inserted() + "...");
+                }
+            });
+        } catch (IllegalArgumentException e) {
+            editStatus(chatId, statusId, e.getMessage());
+            return;
+        } catch (IOException | TelegramApiException e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+            editStatus(chatId, statusId, "Не удалось загрузить выписку");
+            return;
+        }
+        if (result == null) {
+            editStatus(chatId, statusId, "Ошибка записи в базу данных, импорт прерван");
+            return;
+        }
+        StringBuilder summary = new StringBuilder("Импорт выписки " + fileName + " завершен\n")
+                .append("Добавлено расходов: ").append(result.inserted()).append("\n")
+                .append("Уже были загружены: ").append(result.duplicates()).append("\n")
+                .append("Пропущено поступлений: ").append(result.income()).append("\n");
+        if (result.invalid() > 0) {
+            summary.append("Не удалось разобрать строк: ").append(result.invalid()).append("\n");
+        }
+        summary.append(budgetDB.getBudgetStatus());
+        editStatus(chatId, statusId, summary.toString());
+    }
+
+    private void editStatus(String chatId, Integer messageId, String text) {
+        if (messageId == null) {
+            sendMessage(chatId, text);
+            return;
+        }
+        sender.execute(chatId, EditMessageText.builder().chatId(chatId).messageId(messageId).text(text).build());
+    }
+
+    private void handleCallback(CallbackQuery callback) {
+        if (callback.getMessage() == null) {
+            return;
+        }
+        String chatId = callback.getMessage().getChatId().toString();
+        Family family = families.familyOf(chatId);
+        String data = callback.getData() == null ? "" : callback.getData();
+        if (family == null || !data.startsWith(EXPENSES_CALLBACK)) {
+            answerCallback(chatId, callback, family == null ? "Доступ запрещен" : null);
+            return;
+        }
+        String[] parts = data.split(":", 4);
+        ExpenseFilter filter;
+        long cursor;
+        try {
+            filter = ExpenseFilter.decode(parts[3]);
+            cursor = Long.parseLong(parts[2]);
+        } catch (RuntimeException e) {
+            logger.warning("Invalid callback data from " + chatId + ": " + data);
+            answerCallback(chatId, callback, null);
+            return;
+        }
+        BudgetDB budgetDB = families.open(family);
+        ExpensePage page = budgetDB.getExpensePage(filter, cursor, parts[1].equals("o"));
+        if (page.isEmpty()) {
+            answerCallback(chatId, callback, "Больше записей нет");
+            return;
+        }
+        answerCallback(chatId, callback, null);
+        sender.execute(chatId, EditMessageText.builder()
+                .chatId(chatId)
+                .messageId(callback.getMessage().getMessageId())
+                .text(formatExpenses(page, filter, budgetDB))
+                .replyMarkup(expensesKeyboard(page, filter))
+                .build());
+    }
+
+    private void answerCallback(String chatId, CallbackQuery callback, String text) {
+        sender.execute(chatId, AnswerCallbackQuery.builder().callbackQueryId(callback.getId()).text(text).build());
+    }
+
+    /**
+     * Sends the newest page of {@code /expenses [filter]}; the buttons under it page through the rest in place.
+     */
+    private void sendExpenses(String chatId, Family family, String text) {
+        BudgetDB budgetDB = families.open(family);
+        List<String> args = Arrays.asList(text.strip().split("\\s+"));
+        ExpenseFilter filter;
+        try {
+            filter = ExpenseFilter.parse(args.subList(1, args.size()), chatId, family, budgetDB.getCategoryIndex());
+        } catch (IllegalArgumentException e) {
+            sendMessage(chatId, OutboundSender.escapeHtml(e.getMessage()));
+            return;
+        }
+        ExpensePage page = budgetDB.getExpensePage(filter, 0, true);
+        SendMessage message = new SendMessage(chatId, formatExpenses(page, filter, budgetDB));
+        message.setReplyMarkup(expensesKeyboard(page, filter));
+        sender.execute(chatId, message);
+    }
+
+    private String formatExpenses(ExpensePage page, ExpenseFilter filter, BudgetDB budgetDB) {
+        StringBuilder result = new StringBuilder("Расходы (" + filter.describe(budgetDB.getCategoryIndex()) + "):\n");
+        if (page.isEmpty()) {
+            return result.append("нет записей").toString();
+        }
+        for (ExpensePage.Row row : page.rows()) {
+            result.append("- ").append(row.amount()).append(" руб. на ").append(row.category())
+                    .append(" от ").append(row.created())
+                    .append(" /del").append(row.id())
+                    .append("\n");
+        }
+        return result.toString();
+    }
+
+    private InlineKeyboardMarkup expensesKeyboard(ExpensePage page, ExpenseFilter filter) {
+        List<InlineKeyboardButton> buttons = new ArrayList<>();
+        if (!page.isEmpty()) {
+            String newer = page.hasNewer() ? expensesCallback(false, page.firstId(), filter) : null;
+            String older = page.hasOlder() ? expensesCallback(true, page.lastId(), filter) : null;
+            if (newer != null) {
+                buttons.add(InlineKeyboardButton.builder().text("◀ Новее").callbackData(newer).build());
+            }
+            if (older != null) {
+                buttons.add(InlineKeyboardButton.builder().text("Старее ▶").callbackData(older).build());
+            }
         }
+        return InlineKeyboardMarkup.builder().keyboard(buttons.isEmpty() ? List.of() : List.of(buttons)).build();
+    }
+
+    /**
+     * Callback data of a history page button, {@code e:o|n:cursor:filter},
+     * or {@code null} if it does not fit into the 64 bytes Telegram accepts.
+     */
+    static String expensesCallback(boolean older, long cursor, ExpenseFilter filter) {
+        String data = EXPENSES_CALLBACK + (older ? "o:" : "n:") + cursor + ":" + filter.encode();
+        return data.getBytes(StandardCharsets.UTF_8).length <= MAX_CALLBACK_DATA_BYTES ? data : null;
     }
 
-    public void sendDailyReminder() {
-        for (String user_id : userIdArray) {
-            sendMessage(user_id, "Заполни расходы за сегодня \uD83D\uDCB8");
+    /**
+     * Reminds the user to log expenses, unless they already have today in their time zone.
+     */
+    public void sendDailyReminder(String userId, ZoneId zone) {
+        Family family = families.familyOf(userId);
+        if (family == null) {
+            return;
         }
+        LocalDate today = LocalDate.now(zone);
+        // Expenses are stored in the server's local time
+        LocalDateTime from = today.atStartOfDay(zone).withZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime();
+        LocalDateTime to = today.plusDays(1).atStartOfDay(zone).withZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime();
+        BudgetDB budgetDB = families.acquire(family);
+        boolean logged;
+        try {
+            logged = budgetDB.hasExpenses(Integer.parseInt(userId), from, to);
+        } finally {
+            families.release(family);
+        }
+        if (logged) {
+            logger.fine(() -> "Skipping the reminder of " + userId + ": expenses already logged today");
+            return;
+        }
+        sendMessage(userId, "Заполни расходы за сегодня \uD83D\uDCB8");
     }
 
-    public void sendMonthStatisticToEveryone() {
-        for (String user_id : userIdArray) {
-            sendMonthStatistic(user_id);
+    /**
+     * Sends the statistic of the given month and waits for it to be delivered, so that the next user
+     * of the family gets the file_id of the uploaded chart.
+     */
+    public void sendMonthReport(String userId, YearMonth month) {
+        Family family = families.familyOf(userId);
+        if (family != null) {
+            families.acquire(family);
+            try {
+                sendMonthStatistic(userId, family, month).exceptionally(e -> null).join();
+            } finally {
+                families.release(family);
+            }
         }
     }
 
-    private String getMonth() {
+    private String getMonth(YearMonth month) {
         LocalDate today = LocalDate.now();
+        LocalDate end = month.equals(YearMonth.from(today)) ? today : month.atEndOfMonth();
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("LLLL", Locale.forLanguageTag("ru"));
-        return formatter.format(today).toUpperCase()
-                + " (" + LocalDate.now().withDayOfMonth(1).format(DateTimeFormatter.ofPattern("dd.MM.yyyy"))
-                + " - " + LocalDate.now().format(DateTimeFormatter.ofPattern("dd.MM.yyyy")) + ")";
+        return formatter.format(month).toUpperCase()
+                + " (" + month.atDay(1).format(DateTimeFormatter.ofPattern("dd.MM.yyyy"))
+                + " - " + end.format(DateTimeFormatter.ofPattern("dd.MM.yyyy")) + ")";
     }
 
-    private void writeData(String fromId, String text) {
-        Expense expense = parseMessage(text);
+    private void writeData(String fromId, Family family, String text) {
+        String[] lines = text.strip().split("\\R");
+        if (lines.length > 1) {
+            writeBatch(fromId, family, lines);
+            return;
+        }
+        Expense expense = ExpenseParser.parse(text);
         if (expense != null) {
-            Map<String, String> insertResult = budgetDB.insertExpense(expense, Integer.parseInt(fromId), text);
+            String question = didYouMean(families.open(family), expense);
+            if (question != null) {
+                sendMessage(fromId, question + "\nОтправьте расход еще раз с нужной категорией");
+                return;
+            }
+            Map<String, String> insertResult = families.open(family).insertExpense(expense, Integer.parseInt(fromId), text);
             if (!insertResult.isEmpty()) {
-                for (String user_id : userIdArray) {
-                    sendMessage(user_id,
-                            "Добавлен расход: " + insertResult.get("amount") + " руб. на " + insertResult.get("category") + " от " + insertResult.get("date"));
+                String budget = insertResult.get("budget");
+                for (String user_id : family.getUserIds()) {
+                    sender.sendMessage(user_id,
+                            "Добавлен расход: " + insertResult.get("amount") + " руб. на " + insertResult.get("category") + " от " + insertResult.get("date")
+                                    + (budget.isEmpty() ? "" : "\n" + budget),
+                            EXPENSE_ADDED);
                 }
             }
         } else {
@@ -129,55 +393,131 @@ public class FamilyBudgetBot extends TelegramLongPollingBot {
         }
     }
 
-    private Expense parseMessage(String text) {
-        Expense result = new Expense();
-        Matcher matcher = Pattern.compile("^(\\d+)\\s*(.*?)\\s*(\\d{2}\\.\\d{2}\\.\\d{4})?$").matcher(text);
-        if (matcher.find()) {
-            if (Integer.parseInt(matcher.group(1)) > 0) {
-                result.setAmount(Integer.parseInt(matcher.group(1)));
-                if (matcher.group(2) != null) {
-                    result.setCategory(matcher.group(2));
-                }
-                if (matcher.group(3) != null) {
-                    try {
-                        result.setDate(LocalDateTime.of(LocalDate.parse(matcher.group(3), DateTimeFormatter.ofPattern("dd.MM.yyyy")), LocalTime.now()));
-                    } catch (Exception e) {
-                        return null;
-                    }
-                }
-            } else {
-                return null;
-            }
-        } else {
+    /**
+     * {@code /del<id>}: deletes an expense of the sender, or of a user who is no longer in the family,
+     * and tells every member; the sender can bring it back with {@code /undo}.
+     */
+    private void deleteExpense(String fromId, Family family, long expenseId) {
+        BudgetDB budgetDB = families.open(family);
+        Expense expense = budgetDB.getExpense(expenseId);
+        String author = expense == null ? null : String.valueOf(expense.getUserId());
+        if (author != null && !author.equals(fromId) && family.getUserIds().contains(author)) {
+            sendMessage(fromId, "Удалить можно только свой расход");
+            return;
+        }
+        ExpenseChange deleted = expense == null ? null : budgetDB.deleteExpense(expenseId, Integer.parseInt(fromId));
+        if (deleted == null) {
+            sendMessage(fromId, "Расход не найден или уже удален");
+            return;
+        }
+        notifyFamily(fromId, family, "Удален расход: " + describe(deleted, budgetDB), "Вернуть: /undo");
+    }
+
+    /**
+     * {@code /undo}: restores the last expense the sender deleted, repeated it goes further back.
+     */
+    private void undoDelete(String fromId, Family family) {
+        BudgetDB budgetDB = families.open(family);
+        ExpenseChange restored = budgetDB.undoDelete(Integer.parseInt(fromId));
+        if (restored == null) {
+            sendMessage(fromId, "Нет удаленных расходов, которые можно вернуть");
+            return;
+        }
+        notifyFamily(fromId, family, "Восстановлен расход: " + describe(restored, budgetDB), "");
+    }
+
+    private String describe(ExpenseChange change, BudgetDB budgetDB) {
+        String budget = budgetDB.getBudgetStatus();
+        return change.amount() + " руб. на " + budgetDB.getCategory(change.categoryCodename()).name()
+                + " от " + change.created() + (budget.isEmpty() ? "" : "\n" + budget);
+    }
+
+    /**
+     * Sends the text to every member of the family, with {@code senderNote} added for the sender only.
+     */
+    private void notifyFamily(String fromId, Family family, String text, String senderNote) {
+        for (String userId : family.getUserIds()) {
+            sendMessage(userId, userId.equals(fromId) && !senderNote.isEmpty() ? text + "\n" + senderNote : text);
+        }
+    }
+
+    /**
+     * Asks which category was meant if the category of the expense is a typo away from more than one,
+     * rather than filing it under a guess; null if it is clear.
+     */
+    private String didYouMean(BudgetDB budgetDB, Expense expense) {
+        List<Category> candidates = budgetDB.getCategoryIndex().ambiguous(expense.getCategory());
+        if (candidates.isEmpty()) {
             return null;
         }
-        return result;
+        return "Категория «" + OutboundSender.escapeHtml(expense.getCategory()) + "» не найдена. Возможно, вы имели в виду: "
+                + String.join(" или ", candidates.stream().map(Category::name).toList()) + "?";
     }
 
-    private void sendMessage(String chatId, String text) {
-        SendMessage sendMessage = new SendMessage();
-        sendMessage.setParseMode("HTML");
-        sendMessage.setChatId(chatId);
-        sendMessage.setText(text);
+    /**
+     * Handles a multi-line message or pasted CSV (fields separated by ';' or tabs):
+     * valid lines are inserted in one transaction, invalid ones and those with an unclear category
+     * are reported back to the sender.
+     */
+    private void writeBatch(String fromId, Family family, String[] lines) {
+        BudgetDB budgetDB = families.open(family);
+        List<Expense> expenses = new ArrayList<>();
+        StringBuilder errors = new StringBuilder();
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i].strip();
+            if (line.isEmpty()) {
+                continue;
+            }
+            Expense expense = ExpenseParser.parse(String.join(" ", CSV_SEPARATOR.split(line)).strip());
+            String question = expense == null ? null : didYouMean(budgetDB, expense);
+            if (question != null) {
+                errors.append("Строка ").append(i + 1).append(": ").append(question).append("\n");
+            } else if (expense != null) {
+                expense.setRawText(line);
+                expenses.add(expense);
+            } else {
+                errors.append("Строка ").append(i + 1).append(": ").append(OutboundSender.escapeHtml(line)).append("\n");
+            }
+        }
 
-        try {
-            execute(sendMessage);
-        } catch (TelegramApiException e) {
-            logger.log(Level.SEVERE, e.getMessage(), e);
+        if (!expenses.isEmpty()) {
+            List<Map<String, String>> insertResult = budgetDB.insertExpenses(expenses, Integer.parseInt(fromId));
+            if (insertResult.isEmpty()) {
+                sendMessage(fromId, "Ошибка записи расходов");
+                return;
+            }
+            int total = 0;
+            StringBuilder summary = new StringBuilder();
+            for (Map<String, String> row : insertResult) {
+                total += Integer.parseInt(row.get("amount"));
+                summary.append("- ").append(row.get("amount")).append(" руб. на ").append(row.get("category"))
+                        .append(" от ").append(row.get("date")).append("\n");
+            }
+            summary.append(budgetDB.getBudgetStatus());
+            for (String user_id : family.getUserIds()) {
+                sendMessage(user_id, "Добавлено расходов: " + insertResult.size() + " на " + total + " руб.\n" + summary);
+            }
+        }
+        if (!errors.isEmpty()) {
+            sendMessage(fromId, "Не удалось разобрать строки:\n" + errors
+                    + "Пример нужного формата: \n1000 продукты 01.01.1997");
         }
     }
 
-    private void sendMonthStatistic(String chatId) {
+    private void sendMessage(String chatId, String text) {
+        sender.sendMessage(chatId, text);
+    }
+
+    private CompletableFuture<Message> sendMonthStatistic(String chatId, Family family, YearMonth month) {
         SendPhoto sendPhoto = new SendPhoto();
         sendPhoto.setChatId(chatId);
 
-        JSONArray statisticJSON = budgetDB.getMonthStatistic();
-        DefaultPieDataset pieDataset = new DefaultPieDataset();
+        BudgetDB budgetDB = families.open(family);
+        long dataVersion = budgetDB.getDataVersion();
+        JSONArray statisticJSON = budgetDB.getMonthStatistic(month);
         StringBuilder statistic = new StringBuilder();
         for (int i = 0; i < statisticJSON.length(); i++) {
             JSONObject row = statisticJSON.getJSONObject(i);
-            pieDataset.setValue(row.getString("name").toUpperCase(), row.getFloat("percentage"));
-
             statistic
                     .append(row.getString("name").toUpperCase()).append(": ")
                     .append(String.format("%.2f%%", row.getFloat("percentage"))).append(" ")
@@ -185,108 +525,206 @@ public class FamilyBudgetBot extends TelegramLongPollingBot {
                     .append("\n");
         }
 
-        String month = getMonth();
-        JFreeChart monthStatisticPieChart = ChartFactory.createPieChart3D(month, pieDataset, false, false, false);
-        monthStatisticPieChart.setBackgroundPaint(new Color(232, 232, 255));
+        String title = getMonth(month);
+        ChartRenderer.Chart chart = Charts.RENDERER.getMonthChart(family.getName(), title, dataVersion, statisticJSON);
+        if (chart.getFileId() != null) {
+            sendPhoto.setPhoto(new InputFile(chart.getFileId()));
+        } else {
+            sendPhoto.setPhoto(new InputFile(new ByteArrayInputStream(chart.getPng()), "month.png"));
+        }
+        sendPhoto.setCaption("Расходы за " + title + ": " + budgetDB.getMonthSum(month) + " руб." +
+                "\nСтатистика:\n" + statistic);
+        return sender.sendPhoto(sendPhoto).thenApply(message -> {
+            if (chart.getFileId() == null && message.hasPhoto()) {
+                chart.setFileId(message.getPhoto().getLast().getFileId());
+            }
+            return message;
+        });
+    }
 
-        TextTitle title = monthStatisticPieChart.getTitle();
-        title.setPaint(Color.DARK_GRAY);
-        title.setFont(new Font("Arial", Font.BOLD, 26));
+    /**
+     * {@code /trend [months]}: spending of the last 2-24 months (12 by default) as a stacked bar chart,
+     * followed by the monthly totals with their rolling average and the per-category change of the last month.
+     */
+    private void sendTrend(String chatId, Family family, String text) {
+        String[] args = text.strip().split("\\s+");
+        int months = TREND_DEFAULT_MONTHS;
+        if (args.length > 1) {
+            try {
+                months = Integer.parseInt(args[1]);
+            } catch (NumberFormatException e) {
+                months = 0;
+            }
+            if (months < 2 || months > TREND_MAX_MONTHS) {
+                sendMessage(chatId, "Укажите число месяцев от 2 до " + TREND_MAX_MONTHS + ", например: /trend 12");
+                return;
+            }
+        }
+        BudgetDB budgetDB = families.open(family);
+        long dataVersion = budgetDB.getDataVersion();
+        MonthlyTrend trend = budgetDB.getTrend(months);
+
+        int last = months - 1;
+        StringBuilder report = new StringBuilder("Итоги по месяцам (среднее за " + MonthlyTrend.ROLLING_WINDOW + " мес.):\n");
+        long total = 0;
+        for (int month = 0; month < months; month++) {
+            total += trend.getTotal(month);
+            report.append(trend.getMonths().get(month).format(TREND_MONTH)).append(": ")
+                    .append(trend.getTotal(month)).append(" руб.")
+                    .append(formatChange(trend.getTotalChange(month)))
+                    .append(", среднее ").append(Math.round(trend.getRollingAverage(month, MonthlyTrend.ROLLING_WINDOW)))
+                    .append("\n");
+        }
+        report.append("\nЗа ").append(trend.getMonths().get(last).format(TREND_MONTH)).append(" по категориям:\n");
+        for (int category = 0; category < trend.getCategories().size(); category++) {
+            if (trend.getAmount(category, last) != 0 || trend.getAmount(category, last - 1) != 0) {
+                report.append("- ").append(trend.getCategories().get(category)).append(": ")
+                        .append(trend.getAmount(category, last)).append(" руб.")
+                        .append(formatChange(trend.getChange(category, last)))
+                        .append("\n");
+            }
+        }
 
-        PiePlot3D plot = (PiePlot3D) monthStatisticPieChart.getPlot();
-        plot.setForegroundAlpha(0.6f);
-        plot.setLabelGenerator(new StandardPieSectionLabelGenerator("{0}: {1}%"));
-        plot.setLabelBackgroundPaint(null);
-        plot.setBackgroundPaint(null);
-        plot.setOutlineVisible(false);
+        String title = "Расходы за " + months + " мес.";
+        ChartRenderer.Chart chart = Charts.RENDERER.getTrendChart(family.getName(), title, dataVersion, trend);
+        SendPhoto sendPhoto = new SendPhoto();
+        sendPhoto.setChatId(chatId);
+        if (chart.getFileId() != null) {
+            sendPhoto.setPhoto(new InputFile(chart.getFileId()));
+        } else {
+            sendPhoto.setPhoto(new InputFile(new ByteArrayInputStream(chart.getPng()), "trend.png"));
+        }
+        sendPhoto.setCaption(title + ": " + total + " руб., в среднем " + total / months + " руб. в месяц");
+        sender.sendPhoto(sendPhoto).thenAccept(message -> {
+            if (chart.getFileId() == null && message.hasPhoto()) {
+                chart.setFileId(message.getPhoto().getLast().getFileId());
+            }
+        });
+        sendMessage(chatId, report.toString());
+    }
 
-        try {
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
-            ImageIO.write(monthStatisticPieChart.createBufferedImage(600, 400), "png", os);
-            sendPhoto.setPhoto(new InputFile(new ByteArrayInputStream(os.toByteArray()), "test.png"));
-            sendPhoto.setCaption("Расходы за " + month + ": " + budgetDB.getMonthSum() + " руб." +
-                    "\nСтатистика:\n" + statistic);
-            execute(sendPhoto);
-        } catch (IOException | TelegramApiException e) {
-            logger.log(Level.SEVERE, e.getMessage(), e);
+    /**
+     * {@code /budget} shows what is left of the limits; {@code /budget base|extra day|month <amount>} sets one, 0 removes it.
+     */
+    private void handleBudget(String chatId, BudgetDB budgetDB, String text) {
+        String[] args = text.strip().split("\\s+");
+        if (args.length == 1) {
+            String status = budgetDB.getBudgetStatus();
+            sendMessage(chatId, status.isEmpty() ? "Лимиты не заданы" : status);
+            return;
         }
+        if (args.length != 4 || !args[1].matches(BudgetLedger.BASE + "|" + BudgetLedger.EXTRA)
+                || !args[2].matches("day|month") || !args[3].matches("\\d{1,9}")) {
+            sendMessage(chatId, "Неверный формат. Пример: /budget base day 500 (base - базовые расходы, extra - прочие; "
+                    + "day или month; 0 - без лимита)");
+            return;
+        }
+        if (budgetDB.setBudgetLimit(args[1].equals(BudgetLedger.BASE), args[2].equals("day"), Integer.parseInt(args[3]))) {
+            String status = budgetDB.getBudgetStatus();
+            sendMessage(chatId, "Лимит сохранен" + (status.isEmpty() ? "" : "\n" + status));
+        } else {
+            sendMessage(chatId, "Ошибка сохранения лимита");
+        }
+    }
 
+    private static String formatChange(Double change) {
+        return change == null ? "" : String.format(" (%+.0f%%)", change);
+    }
 
+    /**
+     * Backs up every family database in turn, each kept open until its snapshot is written.
+     */
+    public void backupDatabase() {
+        for (Family family : families.getFamilies()) {
+            BudgetDB budgetDB = families.acquire(family);
+            try {
+                backupService.backupAsync(budgetDB).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                logger.log(Level.SEVERE, e.getMessage(), e);
+            } finally {
+                families.release(family);
+            }
+        }
+    }
+
+    /**
+     * Purges the expenses deleted more than {@code retentionDays} days ago from every family database.
+     */
+    public void purgeDeleted(int retentionDays) {
+        LocalDateTime before = LocalDateTime.now().minusDays(retentionDays);
+        for (Family family : families.getFamilies()) {
+            BudgetDB budgetDB = families.acquire(family);
+            try {
+                budgetDB.purgeDeleted(before);
+            } finally {
+                families.release(family);
+            }
+        }
     }
 
-    private void sendBackup(String chatId) {
-        File backup = backupDB();
+    private void sendBackup(String chatId, Family family) {
+        BudgetDB budgetDB = families.open(family);
+        Path backup = backupService.getLatest(budgetDB);
+        if (backup == null) {
+            try {
+                backup = backupService.backupAsync(budgetDB).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                logger.log(Level.SEVERE, e.getMessage(), e);
+            }
+        }
         if (backup != null) {
-            sendDocument(chatId, backup);
+            sendDocument(chatId, backup.toFile());
         } else {
             sendMessage(chatId, "Ошибка создания резервной копии базы данных!");
         }
-
     }
 
-    private File backupDB() {
-        // Check backup folder
-        File backupDir = new File("backup");
-        if (!backupDir.exists() && !backupDir.mkdir()) return null;
-
-        // Create database backup
-        Path source = Paths.get("budget.db");
-        Path target = Paths.get(backupDir.getPath()
-                + File.separator
-                + "budget_%s.db".formatted(LocalDate.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd"))));
+    private void sendExcel(String fromId, Family family) {
         try {
-            Files.copy(source, target);
+            InputStream excel = Excel.EXPORTER.export(families.open(family));
+            if (excel != null) {
+                sendDocument(fromId, new InputFile(excel,
+                        "budget_%s.xlsx".formatted(LocalDate.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd")))))
+                        .whenComplete((message, e) -> closeQuietly(excel));
+            } else {
+                sendMessage(fromId, "Расходов пока нет");
+            }
         } catch (IOException e) {
             logger.log(Level.SEVERE, e.getMessage(), e);
         }
-        return target.toFile();
-    }
-
-    private void sendExcel(String fromId) {
-        try (Workbook workbook = new HSSFWorkbook()) {
-
-            Map<String, JSONArray> allExpensesMap = budgetDB.getAllExpenses();
-            if (!allExpensesMap.isEmpty()) {
-                for (Map.Entry<String, JSONArray> mounthsExpenses : allExpensesMap.entrySet()) {
-                    Sheet sheet = workbook.createSheet(mounthsExpenses.getKey());
-                    Row rowSheet = sheet.createRow(0);
-                    sheet.setColumnWidth(0, 15 * 256);
-                    sheet.setColumnWidth(1, 10 * 256);
-                    rowSheet.createCell(0).setCellValue("Категория");
-                    rowSheet.createCell(1).setCellValue("Затраты");
-                    JSONArray rows = mounthsExpenses.getValue();
-                    String category;
-                    for (int i = 0; i < rows.length(); i++) {
-                        JSONObject rowJSON = rows.getJSONObject(i);
-                        rowSheet = sheet.createRow(i+1);
-                        category = rowJSON.getString(CATEGORY);
-                        rowSheet.createCell(0).setCellValue(category.substring(0, 1).toUpperCase() + category.substring(1));
-                        rowSheet.createCell(1).setCellValue(rowJSON.getFloat(AMOUNT));
-                    }
-                    sheet.setAutoFilter(new CellRangeAddress(0, rows.length(), 0, 1));
-                    sheet.createFreezePane(0, 1);
-                }
-
-                File excel = new File("budget_%s.xlsx".formatted(LocalDate.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd"))));
-                workbook.write(new FileOutputStream(excel));
-                sendDocument(fromId, excel);
-            }
-        } catch (Exception e) {
+    }
 
+    private void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, e.getMessage(), e);
         }
+    }
 
+    private CompletableFuture<Message> sendDocument(String chatId, File document) {
+        return sendDocument(chatId, new InputFile(document));
     }
 
-    private void sendDocument(String chatId, File document) {
+    private CompletableFuture<Message> sendDocument(String chatId, InputFile document) {
         SendDocument sendDocument = new SendDocument();
         sendDocument.setChatId(chatId);
-        sendDocument.setDocument(new InputFile(document));
+        sendDocument.setDocument(document);
+        return sender.sendDocument(sendDocument);
+    }
 
-        try {
-            execute(sendDocument);
-        } catch (TelegramApiException e) {
-            logger.log(Level.SEVERE, e.getMessage(), e);
-        }
+    // Charts need AWT and JFreeChart, the export needs POI: each is created, and its classes loaded,
+    // on the first /month, /trend or /excel rather than at startup
+    private static final class Charts {
+        static final ChartRenderer RENDERER = new ChartRenderer();
     }
 
+    private static final class Excel {
+        static final ExcelExporter EXPORTER = new ExcelExporter();
+    }
 }
@@ -0,0 +1,161 @@
+package ru.familybudget;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Maps chat IDs to families and opens family databases on demand.
+ * Every family has its own SQLite file, so families never wait on each other's write lock.
+ * At most {@code maxOpen} databases are open at once: the least recently used one is closed
+ * when another has to be opened, and databases idle for longer than the idle timeout are closed too.
+ * A database is never closed while it is in use: every piece of work on a family holds a reference
+ * from {@link #acquire(Family)} until it calls {@link #release(Family)}, and the databases still referenced
+ * stay open beyond {@code maxOpen} until they are released.
+ */
+public class FamilyRegistry {
+    Logger logger = Logger.getLogger(FamilyRegistry.class.getName());
+    static final String DEFAULT_FAMILY = "default";
+    private final List<Family> families;
+    private final Map<String, Family> byUserId = new HashMap<>();
+    private final int maxOpen;
+    private final long idleTimeoutNanos;
+    // Open families in access order with the time of their last use
+    private final LinkedHashMap<Family, Long> open = new LinkedHashMap<>(16, 0.75f, true);
+    // Number of references to each family in use, see acquire()
+    private final Map<Family, Integer> references = new HashMap<>();
+    private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "family-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public FamilyRegistry(List<Family> families, int maxOpen, long idleTimeoutMinutes) {
+        this.families = List.copyOf(families);
+        this.maxOpen = maxOpen;
+        this.idleTimeoutNanos = TimeUnit.MINUTES.toNanos(idleTimeoutMinutes);
+        for (Family family : families) {
+            for (String userId : family.getUserIds()) {
+                if (byUserId.putIfAbsent(userId, family) != null) {
+                    throw new IllegalArgumentException("User " + userId + " belongs to more than one family");
+                }
+            }
+        }
+        evictor.scheduleWithFixedDelay(this::closeIdle, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Reads families from {@code bot.families} ({@code name:id,id;name:id}).
+     * Without it, the users from {@code bot.user_id_array} form a single family kept in {@code budget.db}.
+     * {@code db.write_behind=true} turns on the write-behind journal of every family database.
+     */
+    public static FamilyRegistry fromProperties(Properties properties) {
+        List<Family> families = new ArrayList<>();
+        Function<String, BudgetDB> database = url -> {
+            BudgetDB budgetDB = new BudgetDB(url);
+            if (Boolean.parseBoolean(properties.getProperty("db.write_behind", "false"))) {
+                budgetDB.enableWriteBehind(
+                        Long.parseLong(properties.getProperty("db.write_behind.flush_millis", "500")),
+                        Integer.parseInt(properties.getProperty("db.write_behind.max_batch", "50")),
+                        Boolean.parseBoolean(properties.getProperty("db.write_behind.sync", "false")));
+            }
+            return budgetDB;
+        };
+        String config = properties.getProperty("bot.families", "").strip();
+        if (config.isEmpty()) {
+            families.add(new Family(DEFAULT_FAMILY, parseIds(properties.getProperty("bot.user_id_array")), database.apply("jdbc:sqlite:budget.db")));
+        } else {
+            for (String entry : config.split(";")) {
+                String[] parts = entry.split(":", 2);
+                String name = parts[0].strip();
+                if (!name.matches("[\\w-]+") || parts.length < 2) {
+                    throw new IllegalArgumentException("Invalid family entry: " + entry);
+                }
+                families.add(new Family(name, parseIds(parts[1]), database.apply("jdbc:sqlite:budget_" + name + ".db")));
+            }
+        }
+        return new FamilyRegistry(families,
+                Integer.parseInt(properties.getProperty("db.max_open", "16")),
+                Long.parseLong(properties.getProperty("db.idle_timeout_minutes", "30")));
+    }
+
+    public Family familyOf(String userId) {
+        return byUserId.get(userId);
+    }
+
+    public List<Family> getFamilies() {
+        return families;
+    }
+
+    /**
+     * Opens the family database if needed and keeps it open until {@link #release(Family)} is called as many times.
+     */
+    public synchronized BudgetDB acquire(Family family) {
+        BudgetDB budgetDB = open(family);
+        references.merge(family, 1, Integer::sum);
+        return budgetDB;
+    }
+
+    public synchronized void release(Family family) {
+        references.computeIfPresent(family, (f, count) -> count > 1 ? count - 1 : null);
+        closeEldest(null);
+    }
+
+    /**
+     * Returns the family database, opening it (and closing the least recently used one) if needed.
+     * The caller must hold a reference from {@link #acquire(Family)} for as long as it uses the database.
+     */
+    public synchronized BudgetDB open(Family family) {
+        if (open.put(family, System.nanoTime()) == null) {
+            if (!family.getBudgetDB().connect()) {
+                open.remove(family);
+                throw new IllegalStateException("Cannot open database of family " + family);
+            }
+            logger.info("Opened database of family " + family);
+            closeEldest(family);
+        }
+        return family.getBudgetDB();
+    }
+
+    // Databases are closed with the monitor held, so that a family cannot be opened again while it is being closed
+    private void closeEldest(Family opened) {
+        Iterator<Family> eldest = open.keySet().iterator();
+        while (open.size() > maxOpen && eldest.hasNext()) {
+            Family family = eldest.next();
+            if (family != opened && !references.containsKey(family)) {
+                eldest.remove();
+                close(family);
+            }
+        }
+    }
+
+    private synchronized void closeIdle() {
+        long now = System.nanoTime();
+        open.entrySet().removeIf(entry -> {
+            if (now - entry.getValue() > idleTimeoutNanos && !references.containsKey(entry.getKey())) {
+                close(entry.getKey());
+                return true;
+            }
+            return false;
+        });
+    }
+
+    private void close(Family family) {
+        family.getBudgetDB().close();
+        logger.info("Closed database of family " + family);
+    }
+
+    private static List<String> parseIds(String ids) {
+        return Arrays.stream(ids.split(",")).map(String::strip).filter(id -> !id.isEmpty()).toList();
+    }
+}
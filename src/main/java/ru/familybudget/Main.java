@@ -1,65 +1,244 @@
 package ru.familybudget;
 
 import org.quartz.*;
-import org.quartz.impl.StdSchedulerFactory;
+import org.quartz.listeners.JobListenerSupport;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
 import org.telegram.telegrambots.meta.TelegramBotsApi;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 import org.telegram.telegrambots.updatesreceivers.DefaultBotSession;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 import java.util.Properties;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class Main {
+    private static final Logger logger = Logger.getLogger(Main.class.getName());
+    private static final String USER = "user";
+    private static final String ZONE = "zone";
+    private static final String RETENTION_DAYS = "retention_days";
+    // A reminder caught up after a longer downtime would come at the wrong time of day
+    private static final Duration REMINDER_GRACE = Duration.ofHours(1);
     static FamilyBudgetBot familyBudgetBot;
 
-    public static void main(String[] args) throws TelegramApiException, IOException, SchedulerException {
+    public static void main(String[] args) throws TelegramApiException, IOException, SchedulerException, SQLException {
         var app = new FileInputStream("app.properties");
         var properties = new Properties();
         properties.load(app);
 
+        var backupService = new BackupService(
+                Paths.get(properties.getProperty("backup.dir", "backup")),
+                Integer.parseInt(properties.getProperty("backup.retention", "7")),
+                Boolean.parseBoolean(properties.getProperty("backup.gzip", "false")));
+
+        var families = FamilyRegistry.fromProperties(properties);
+        var botOptions = new DefaultBotOptions();
+        String apiUrl = properties.getProperty("bot.api_url", "").strip();
+        if (!apiUrl.isEmpty()) {
+            botOptions.setBaseUrl(apiUrl);
+        }
         familyBudgetBot = new FamilyBudgetBot(
+                botOptions,
                 properties.getProperty("bot.token"),
                 properties.getProperty("bot.username"),
-                properties.getProperty("bot.user_id_array"));
+                families,
+                backupService);
 
-        TelegramBotsApi botsApi = new TelegramBotsApi(DefaultBotSession.class);
-        botsApi.registerBot(familyBudgetBot);
+        if ("webhook".equals(properties.getProperty("bot.mode", "polling").strip())) {
+            new WebhookServer(familyBudgetBot,
+                    properties.getProperty("webhook.url"),
+                    properties.getProperty("webhook.host", "127.0.0.1"),
+                    Integer.parseInt(properties.getProperty("webhook.port", "8080")),
+                    properties.getProperty("webhook.path", "/telegram"),
+                    properties.getProperty("webhook.secret", "").strip()).start();
+        } else {
+            // Registering a long polling bot also removes a webhook set earlier
+            TelegramBotsApi botsApi = new TelegramBotsApi(DefaultBotSession.class);
+            botsApi.registerBot(familyBudgetBot);
+        }
+
+        String metricsPort = properties.getProperty("metrics.port", "").strip();
+        if (!metricsPort.isEmpty()) {
+            new MetricsServer(properties.getProperty("metrics.host", "127.0.0.1"), Integer.parseInt(metricsPort)).start();
+        }
 
-        Scheduler scheduler = StdSchedulerFactory.getDefaultScheduler();
+        // Jobs and triggers live in a database of their own: in a family one, every scheduler commit
+        // would look like an external change and drop the family's cached reports
+        String schedulerUrl = "jdbc:sqlite:" + properties.getProperty("scheduler.db", "scheduler.db").strip();
+        if (families.getFamilies().stream().anyMatch(family -> family.getBudgetDB().getUrl().equals(schedulerUrl))) {
+            throw new IllegalArgumentException("scheduler.db must not be a family database");
+        }
+        BudgetScheduler scheduler = new BudgetScheduler(schedulerUrl,
+                Integer.parseInt(properties.getProperty("scheduler.threads", "2")));
+        scheduler.addJobListener(new JobMetricsListener());
+        schedule(scheduler, properties, families);
         scheduler.start();
+    }
 
-        JobBuilder dailyJobBuilder = JobBuilder.newJob(DailyReminder.class);
-        Trigger dailyMorningTrigger = TriggerBuilder.newTrigger()
-                .withSchedule(CronScheduleBuilder.cronSchedule(properties.getProperty("cron.reminder.daily.morning")))
-                .build();
-        Trigger dailyEveningTrigger = TriggerBuilder.newTrigger()
-                .withSchedule(CronScheduleBuilder.cronSchedule(properties.getProperty("cron.reminder.daily.evening")))
-                .build();
+    /**
+     * Reminders and monthly reports get a trigger per user, in the user's time zone
+     * ({@code timezone.<id>}, else {@code timezone}, else the server's), and their cron can be overridden
+     * per user with {@code <cron property>.<id>}; an empty cron turns the trigger off.
+     * A report or backup missed while the bot was down runs once on the next start.
+     */
+    private static void schedule(BudgetScheduler scheduler, Properties properties, FamilyRegistry families) throws SchedulerException {
+        JobDetail reminderJob = JobBuilder.newJob(DailyReminder.class).withIdentity("reminder").storeDurably().build();
+        JobDetail monthlyJob = JobBuilder.newJob(MonthlyStatistic.class).withIdentity("monthly").storeDurably().build();
+        JobDetail backupJob = JobBuilder.newJob(Backup.class).withIdentity("backup").storeDurably().build();
+        JobDetail purgeJob = JobBuilder.newJob(PurgeDeleted.class).withIdentity("purge").storeDurably().build();
+        scheduler.addJob(reminderJob);
+        scheduler.addJob(monthlyJob);
+        scheduler.addJob(backupJob);
+        scheduler.addJob(purgeJob);
 
-        scheduler.scheduleJob(dailyJobBuilder.withIdentity("morning").build(), dailyMorningTrigger);
-        scheduler.scheduleJob(dailyJobBuilder.withIdentity("evening").build(), dailyEveningTrigger);
+        List<CronTrigger> reminders = new ArrayList<>();
+        List<CronTrigger> reports = new ArrayList<>();
+        for (Family family : families.getFamilies()) {
+            for (String userId : family.getUserIds()) {
+                ZoneId zone = ZoneId.of(properties.getProperty("timezone." + userId,
+                        properties.getProperty("timezone", ZoneId.systemDefault().getId())).strip());
+                for (String time : List.of("morning", "evening")) {
+                    String cron = userProperty(properties, "cron.reminder.daily." + time, userId);
+                    if (!cron.isEmpty()) {
+                        reminders.add(userTrigger(reminderJob, userId + "." + time, cron, zone, userId));
+                    }
+                }
+                String cron = userProperty(properties, "cron.reminder.monthly", userId);
+                if (!cron.isEmpty()) {
+                    reports.add(userTrigger(monthlyJob, userId, cron, zone, userId));
+                }
+            }
+        }
+        scheduler.sync("reminder", reminders);
+        scheduler.sync("monthly", reports);
+        scheduler.sync("backup", List.of(TriggerBuilder.newTrigger()
+                .withIdentity("backup", "backup")
+                .forJob(backupJob)
+                .withSchedule(CronScheduleBuilder.cronSchedule(properties.getProperty("cron.backup", "0 0 4 * * ?"))
+                        .withMisfireHandlingInstructionFireAndProceed())
+                .build()));
+        String purgeCron = properties.getProperty("cron.purge", "0 30 4 * * ?").strip();
+        scheduler.sync("purge", purgeCron.isEmpty() ? List.of() : List.of(TriggerBuilder.newTrigger()
+                .withIdentity("purge", "purge")
+                .forJob(purgeJob)
+                .usingJobData(RETENTION_DAYS, properties.getProperty("db.deleted_retention_days", "30").strip())
+                .withSchedule(CronScheduleBuilder.cronSchedule(purgeCron)
+                        .withMisfireHandlingInstructionFireAndProceed())
+                .build()));
+    }
 
-        JobDetail monthlyJob = JobBuilder.newJob(MonthlyStatistic.class).build();
-        Trigger monthlyTrigger = TriggerBuilder.newTrigger()
-                .withSchedule(CronScheduleBuilder.cronSchedule(properties.getProperty("cron.reminder.monthly")))
-                .build();
+    private static String userProperty(Properties properties, String key, String userId) {
+        return properties.getProperty(key + "." + userId, properties.getProperty(key, "")).strip();
+    }
 
-        scheduler.scheduleJob(monthlyJob, monthlyTrigger);
+    private static CronTrigger userTrigger(JobDetail job, String name, String cron, ZoneId zone, String userId) {
+        return TriggerBuilder.newTrigger()
+                .withIdentity(name, job.getKey().getName())
+                .forJob(job)
+                .usingJobData(USER, userId)
+                .usingJobData(ZONE, zone.getId())
+                .withSchedule(CronScheduleBuilder.cronSchedule(cron)
+                        .inTimeZone(TimeZone.getTimeZone(zone))
+                        .withMisfireHandlingInstructionFireAndProceed())
+                .build();
     }
 
 
+    /**
+     * When the trigger was due. Fire-and-proceed fires a misfired trigger with the current time as its
+     * scheduled fire time, so the missed one is recovered from the previous fire time.
+     */
+    static Instant dueTime(JobExecutionContext context) {
+        Date scheduled = context.getScheduledFireTime();
+        Date previous = context.getPreviousFireTime();
+        // Not Trigger.getFireTimeAfter: it never returns a time before the trigger's start time
+        if (previous != null && context.getTrigger() instanceof CronTrigger trigger) {
+            try {
+                CronExpression cron = new CronExpression(trigger.getCronExpression());
+                cron.setTimeZone(trigger.getTimeZone());
+                Date due = cron.getNextValidTimeAfter(previous);
+                if (due != null && due.before(scheduled)) {
+                    return due.toInstant();
+                }
+            } catch (ParseException e) {
+                logger.log(Level.WARNING, e.getMessage(), e);
+            }
+        }
+        return scheduled.toInstant();
+    }
+
     public static class DailyReminder implements Job {
         @Override
-        public void execute(JobExecutionContext jobExecutionContext) {
-            familyBudgetBot.sendDailyReminder();
+        public void execute(JobExecutionContext context) {
+            JobDataMap data = context.getMergedJobDataMap();
+            Instant due = dueTime(context);
+            if (Duration.between(due, Instant.now()).compareTo(REMINDER_GRACE) > 0) {
+                logger.info("Skipping reminder " + context.getTrigger().getKey() + " missed at " + due);
+                return;
+            }
+            familyBudgetBot.sendDailyReminder(data.getString(USER), ZoneId.of(data.getString(ZONE)));
         }
     }
 
+    /**
+     * Reports the month the trigger was due in, so a report caught up after midnight is still about the month that ended.
+     */
     public static class MonthlyStatistic implements Job {
+        @Override
+        public void execute(JobExecutionContext context) {
+            JobDataMap data = context.getMergedJobDataMap();
+            YearMonth month = YearMonth.from(dueTime(context).atZone(ZoneId.of(data.getString(ZONE))));
+            familyBudgetBot.sendMonthReport(data.getString(USER), month);
+        }
+    }
+
+    public static class Backup implements Job {
         @Override
         public void execute(JobExecutionContext jobExecutionContext) {
-            familyBudgetBot.sendMonthStatisticToEveryone();
+            familyBudgetBot.backupDatabase();
+        }
+    }
+
+    /**
+     * Removes deleted expenses for good once they are older than the retention, after the nightly backup has kept them.
+     */
+    public static class PurgeDeleted implements Job {
+        @Override
+        public void execute(JobExecutionContext context) {
+            familyBudgetBot.purgeDeleted(Integer.parseInt(context.getMergedJobDataMap().getString(RETENTION_DAYS)));
+        }
+    }
+
+    /**
+     * Records the duration and failures of every Quartz job.
+     */
+    public static class JobMetricsListener extends JobListenerSupport {
+        @Override
+        public String getName() {
+            return "metrics";
+        }
+
+        @Override
+        public void jobWasExecuted(JobExecutionContext context, JobExecutionException jobException) {
+            String job = context.getJobDetail().getJobClass().getSimpleName();
+            Metrics.histogram("budget_job_duration_seconds", "Quartz job run time, by job", "job", job)
+                    .observeNanos(TimeUnit.MILLISECONDS.toNanos(context.getJobRunTime()));
+            if (jobException != null) {
+                Metrics.counter("budget_job_failures_total", "Failed Quartz job runs, by job", "job", job).increment();
+            }
         }
     }
 }
@@ -0,0 +1,146 @@
+package ru.familybudget;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Process-wide counters, gauges and latency histograms, rendered in the Prometheus text format.
+ * Recording is lock-free ({@link LongAdder}s), so instruments can stay on the hot paths;
+ * look-ups by name and label should be done once and the instrument kept in a field where possible.
+ */
+public final class Metrics {
+    private static final double[] BUCKETS_SECONDS = {0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+    private static final Map<String, MetricFamily> families = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    public static Histogram histogram(String name, String help, String label, String value) {
+        return (Histogram) family(name, help, "histogram").series.computeIfAbsent(labels(label, value), l -> new Histogram());
+    }
+
+    public static Counter counter(String name, String help, String label, String value) {
+        return (Counter) family(name, help, "counter").series.computeIfAbsent(labels(label, value), l -> new Counter());
+    }
+
+    public static void gauge(String name, String help, String label, String value, DoubleSupplier supplier) {
+        family(name, help, "gauge").series.put(labels(label, value), new Gauge(supplier));
+    }
+
+    public static String scrape() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, MetricFamily> entry : families.entrySet()) {
+            String name = entry.getKey();
+            MetricFamily family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            family.series.forEach((labels, series) -> series.write(out, name, labels));
+        }
+        return out.toString();
+    }
+
+    private static MetricFamily family(String name, String help, String type) {
+        MetricFamily family = families.computeIfAbsent(name, n -> new MetricFamily(help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+        }
+        return family;
+    }
+
+    private static String labels(String label, String value) {
+        if (label == null) {
+            return "";
+        }
+        String escaped = value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        return label + "=\"" + escaped + "\"";
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, String extraLabel, double value) {
+        out.append(name);
+        if (!labels.isEmpty() || extraLabel != null) {
+            out.append('{').append(labels);
+            if (extraLabel != null) {
+                out.append(labels.isEmpty() ? "" : ",").append(extraLabel);
+            }
+            out.append('}');
+        }
+        out.append(' ').append(value == Math.rint(value) && !Double.isInfinite(value) ? String.valueOf((long) value) : String.valueOf(value));
+        out.append('\n');
+    }
+
+    private record MetricFamily(String help, String type, Map<String, Series> series) {
+        private MetricFamily(String help, String type) {
+            this(help, type, new ConcurrentSkipListMap<>());
+        }
+    }
+
+    private interface Series {
+        void write(StringBuilder out, String name, String labels);
+    }
+
+    public static final class Counter implements Series {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        public void write(StringBuilder out, String name, String labels) {
+            sample(out, name, labels, null, value.sum());
+        }
+    }
+
+    private record Gauge(DoubleSupplier supplier) implements Series {
+        @Override
+        public void write(StringBuilder out, String name, String labels) {
+            sample(out, name, labels, null, supplier.getAsDouble());
+        }
+    }
+
+    public static final class Histogram implements Series {
+        private final LongAdder[] buckets = new LongAdder[BUCKETS_SECONDS.length];
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        private Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void observeNanos(long nanos) {
+            double seconds = nanos / (double) TimeUnit.SECONDS.toNanos(1);
+            for (int i = 0; i < BUCKETS_SECONDS.length; i++) {
+                if (seconds <= BUCKETS_SECONDS[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sum.add(seconds);
+        }
+
+        @Override
+        public void write(StringBuilder out, String name, String labels) {
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS_SECONDS.length; i++) {
+                cumulative += buckets[i].sum();
+                sample(out, name + "_bucket", labels, "le=\"" + BUCKETS_SECONDS[i] + "\"", cumulative);
+            }
+            long total = count.sum();
+            sample(out, name + "_bucket", labels, "le=\"+Inf\"", total);
+            sample(out, name + "_sum", labels, null, sum.sum());
+            sample(out, name + "_count", labels, null, total);
+        }
+    }
+}
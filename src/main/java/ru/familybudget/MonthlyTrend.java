@@ -0,0 +1,94 @@
+package ru.familybudget;
+
+import java.time.YearMonth;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Spending per category and month over a range of consecutive months, in columnar form:
+ * {@code amounts[category][month]}, with category ordinals in order of first appearance.
+ * Months without expenses are present with zero amounts.
+ */
+public class MonthlyTrend {
+    public static final int ROLLING_WINDOW = 3;
+    private final List<YearMonth> months;
+    private final List<String> categories = new ArrayList<>();
+    private final Map<String, Integer> ordinals = new HashMap<>();
+    private final List<int[]> amounts = new ArrayList<>();
+    private final int[] totals;
+
+    /**
+     * @param last  the last month of the range
+     * @param count number of months ending with {@code last}
+     */
+    MonthlyTrend(YearMonth last, int count) {
+        List<YearMonth> months = new ArrayList<>(count);
+        for (int i = count - 1; i >= 0; i--) {
+            months.add(last.minusMonths(i));
+        }
+        this.months = List.copyOf(months);
+        this.totals = new int[count];
+    }
+
+    void add(YearMonth month, String category, int amount) {
+        int monthIndex = (int) months.getFirst().until(month, ChronoUnit.MONTHS);
+        if (monthIndex < 0 || monthIndex >= totals.length) {
+            return;
+        }
+        int ordinal = ordinals.computeIfAbsent(category, name -> {
+            categories.add(name);
+            amounts.add(new int[totals.length]);
+            return categories.size() - 1;
+        });
+        amounts.get(ordinal)[monthIndex] += amount;
+        totals[monthIndex] += amount;
+    }
+
+    public List<YearMonth> getMonths() {
+        return months;
+    }
+
+    public List<String> getCategories() {
+        return categories;
+    }
+
+    public int getAmount(int category, int month) {
+        return amounts.get(category)[month];
+    }
+
+    public int getTotal(int month) {
+        return totals[month];
+    }
+
+    /**
+     * Average monthly total over {@code window} months ending with {@code month}
+     * (fewer at the start of the range).
+     */
+    public double getRollingAverage(int month, int window) {
+        int from = Math.max(0, month - window + 1);
+        long sum = 0;
+        for (int i = from; i <= month; i++) {
+            sum += totals[i];
+        }
+        return (double) sum / (month - from + 1);
+    }
+
+    /**
+     * Change against the previous month in percent, or {@code null} if there is nothing to compare with.
+     */
+    public Double getTotalChange(int month) {
+        return month == 0 ? null : change(totals[month - 1], totals[month]);
+    }
+
+    public Double getChange(int category, int month) {
+        int[] row = amounts.get(category);
+        return month == 0 ? null : change(row[month - 1], row[month]);
+    }
+
+    private static Double change(int previous, int current) {
+        return previous == 0 ? null : 100.0 * (current - previous) / previous;
+    }
+}
@@ -0,0 +1,298 @@
+package ru.familybudget;
+
+import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
+import org.telegram.telegrambots.meta.api.methods.send.SendDocument;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.send.SendPhoto;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.bots.AbsSender;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+
+import org.telegram.telegrambots.meta.api.objects.InputFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Queue for everything the bot sends to Telegram.
+ * Requests are sent with {@code executeAsync}, at most one in flight per chat to keep the order,
+ * within per-chat and global token-bucket limits. Messages with the same coalesce key that are still
+ * waiting in a chat queue are merged into one. Requests rejected with 429 are retried after
+ * the {@code retry_after} Telegram returns; server errors are retried with exponential backoff.
+ * Chats take turns when the global limit runs out, and the queue of a chat is dropped once it has been idle
+ * long enough for its rate limit to reset.
+ */
+public class OutboundSender {
+    Logger logger = Logger.getLogger(OutboundSender.class.getName());
+    private static final double CHAT_RATE = 1;
+    private static final double CHAT_BURST = 3;
+    private static final double GLOBAL_RATE = 30;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long BASE_BACKOFF_MILLIS = 500;
+    private static final int MAX_MESSAGE_LENGTH = 4096;
+    private static final long DRAIN_INTERVAL_MILLIS = 20;
+    private final AbsSender bot;
+    private final Map<String, ChatQueue> chats = new ConcurrentHashMap<>();
+    private final TokenBucket globalBucket = new TokenBucket(GLOBAL_RATE, GLOBAL_RATE);
+    // Chat the next drain starts from: the one that was next in line when the global bucket ran dry
+    private String resumeAt;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "telegram-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public OutboundSender(AbsSender bot) {
+        this.bot = bot;
+        scheduler.scheduleWithFixedDelay(this::drain, DRAIN_INTERVAL_MILLIS, DRAIN_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public CompletableFuture<Message> sendMessage(String chatId, String text) {
+        return sendMessage(chatId, text, null);
+    }
+
+    /**
+     * Sends an HTML message. A message with a non-null coalesce key is appended to a waiting message
+     * with the same key in the same chat instead of being sent separately.
+     */
+    public CompletableFuture<Message> sendMessage(String chatId, String text, String coalesceKey) {
+        return withQueue(chatId, queue -> {
+            if (coalesceKey != null) {
+                for (Outgoing<?> waiting : queue.requests) {
+                    if (coalesceKey.equals(waiting.coalesceKey) && waiting.method instanceof SendMessage message
+                            && message.getText().length() + text.length() < MAX_MESSAGE_LENGTH) {
+                        message.setText(message.getText() + "\n" + text);
+                        @SuppressWarnings("unchecked")
+                        CompletableFuture<Message> result = (CompletableFuture<Message>) waiting.result;
+                        return result;
+                    }
+                }
+            }
+            SendMessage sendMessage = new SendMessage();
+            sendMessage.setParseMode("HTML");
+            sendMessage.setChatId(chatId);
+            sendMessage.setText(text);
+            Outgoing<Message> outgoing = new Outgoing<>(sendMessage, coalesceKey, true, () -> bot.executeAsync(sendMessage));
+            queue.requests.add(outgoing);
+            return outgoing.result;
+        });
+    }
+
+    /**
+     * Escapes text that comes from users for {@link #sendMessage}: Telegram rejects the whole message
+     * if it contains {@code <}, {@code >} or {@code &} that do not form valid HTML.
+     */
+    static String escapeHtml(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    /**
+     * A photo uploaded from a stream is read into memory first, so that a retry can upload it again.
+     */
+    public CompletableFuture<Message> sendPhoto(SendPhoto sendPhoto) {
+        InputFile photo = sendPhoto.getPhoto();
+        InputStream stream = photo.getNewMediaStream();
+        if (stream == null) {
+            return enqueue(sendPhoto.getChatId(), new Outgoing<>(sendPhoto, null, true, () -> bot.executeAsync(sendPhoto)));
+        }
+        byte[] bytes;
+        try (stream) {
+            bytes = stream.readAllBytes();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+            return CompletableFuture.failedFuture(e);
+        }
+        String name = photo.getMediaName();
+        return enqueue(sendPhoto.getChatId(), new Outgoing<>(sendPhoto, null, true, () -> {
+            sendPhoto.setPhoto(new InputFile(new ByteArrayInputStream(bytes), name));
+            return bot.executeAsync(sendPhoto);
+        }));
+    }
+
+    /**
+     * Documents uploaded from a stream are not retried: the stream can be read only once.
+     */
+    public CompletableFuture<Message> sendDocument(SendDocument sendDocument) {
+        boolean retryable = sendDocument.getDocument().getNewMediaStream() == null;
+        return enqueue(sendDocument.getChatId(), new Outgoing<>(sendDocument, null, retryable, () -> bot.executeAsync(sendDocument)));
+    }
+
+    public <T extends Serializable> CompletableFuture<T> execute(String chatId, BotApiMethod<T> method) {
+        return enqueue(chatId, new Outgoing<>(method, null, true, () -> bot.executeAsync(method)));
+    }
+
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+
+    private <T> CompletableFuture<T> enqueue(String chatId, Outgoing<T> outgoing) {
+        return withQueue(chatId, queue -> {
+            queue.requests.add(outgoing);
+            return outgoing.result;
+        });
+    }
+
+    /**
+     * Runs the action with the monitor of the chat queue held, on a queue that drain() has not dropped.
+     */
+    private <R> R withQueue(String chatId, Function<ChatQueue, R> action) {
+        while (true) {
+            ChatQueue queue = chats.computeIfAbsent(chatId, ChatQueue::new);
+            synchronized (queue) {
+                if (!queue.removed) {
+                    return action.apply(queue);
+                }
+            }
+        }
+    }
+
+    private void drain() {
+        long now = System.nanoTime();
+        List<ChatQueue> queues = new ArrayList<>(chats.values());
+        int first = 0;
+        while (first < queues.size() && !queues.get(first).chatId.equals(resumeAt)) {
+            first++;
+        }
+        resumeAt = null;
+        for (int i = 0; i < queues.size(); i++) {
+            ChatQueue queue = queues.get((first + i) % queues.size());
+            Outgoing<?> outgoing;
+            synchronized (queue) {
+                if (queue.requests.isEmpty()) {
+                    if (!queue.inFlight && now - queue.notBefore >= 0 && queue.bucket.isFull()) {
+                        queue.removed = true;
+                        chats.remove(queue.chatId, queue);
+                    }
+                    continue;
+                }
+                if (queue.inFlight || now - queue.notBefore < 0 || !queue.bucket.tryTake()) {
+                    continue;
+                }
+                if (!globalBucket.tryTake()) {
+                    queue.bucket.giveBack();
+                    resumeAt = queue.chatId;
+                    return;
+                }
+                outgoing = queue.requests.poll();
+                queue.inFlight = true;
+            }
+            send(queue, outgoing);
+        }
+    }
+
+    private <T> void send(ChatQueue queue, Outgoing<T> outgoing) {
+        outgoing.attempts++;
+        String method = outgoing.method.getClass().getSimpleName();
+        long start = System.nanoTime();
+        CompletableFuture<T> call;
+        try {
+            call = outgoing.call.call();
+        } catch (TelegramApiException | RuntimeException e) {
+            // A RuntimeException escaping drain() would cancel it for good, so it only fails this request
+            call = CompletableFuture.failedFuture(e);
+        }
+        call.whenComplete((response, error) -> {
+            Metrics.histogram("budget_telegram_request_seconds", "Telegram Bot API request latency, by method", "method", method)
+                    .observeNanos(System.nanoTime() - start);
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            if (cause != null) {
+                Metrics.counter("budget_telegram_errors_total", "Failed Telegram Bot API requests, by error code",
+                        "code", errorCodeOf(cause)).increment();
+            }
+            synchronized (queue) {
+                queue.inFlight = false;
+                if (cause == null) {
+                    outgoing.result.complete(response);
+                    return;
+                }
+                long delayMillis = retryDelayMillis(outgoing, cause);
+                if (delayMillis >= 0) {
+                    logger.warning("Telegram request failed, retrying in " + delayMillis + " ms: " + cause.getMessage());
+                    queue.notBefore = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+                    queue.requests.addFirst(outgoing);
+                    return;
+                }
+            }
+            logger.log(Level.SEVERE, cause.getMessage(), cause);
+            outgoing.result.completeExceptionally(cause);
+        });
+    }
+
+    /**
+     * Returns the delay before the next attempt, or -1 if the request must not be retried.
+     */
+    private static long retryDelayMillis(Outgoing<?> outgoing, Throwable cause) {
+        if (!outgoing.retryable || outgoing.attempts >= MAX_ATTEMPTS
+                || !(cause instanceof TelegramApiRequestException requestException)) {
+            return -1;
+        }
+        Integer errorCode = requestException.getErrorCode();
+        if (errorCode != null && errorCode == 429) {
+            var parameters = requestException.getParameters();
+            if (parameters != null && parameters.getRetryAfter() != null) {
+                return TimeUnit.SECONDS.toMillis(parameters.getRetryAfter());
+            }
+        } else if (errorCode == null || errorCode < 500) {
+            return -1;
+        }
+        return BASE_BACKOFF_MILLIS << (outgoing.attempts - 1);
+    }
+
+    private static String errorCodeOf(Throwable cause) {
+        if (cause instanceof TelegramApiRequestException requestException && requestException.getErrorCode() != null) {
+            return String.valueOf(requestException.getErrorCode());
+        }
+        return "none";
+    }
+
+    @FunctionalInterface
+    private interface TelegramCall<T> {
+        CompletableFuture<T> call() throws TelegramApiException;
+    }
+
+    private static final class Outgoing<T> {
+        private final Object method;
+        private final String coalesceKey;
+        private final boolean retryable;
+        private final TelegramCall<T> call;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private int attempts;
+
+        private Outgoing(Object method, String coalesceKey, boolean retryable, TelegramCall<T> call) {
+            this.method = method;
+            this.coalesceKey = coalesceKey;
+            this.retryable = retryable;
+            this.call = call;
+        }
+    }
+
+    private static final class ChatQueue {
+        private final String chatId;
+        private final ArrayDeque<Outgoing<?>> requests = new ArrayDeque<>();
+        private final TokenBucket bucket = new TokenBucket(CHAT_RATE, CHAT_BURST);
+        private boolean inFlight;
+        private long notBefore = System.nanoTime();
+        // Set when drain() drops the queue from chats; requests for the chat then go to a new queue
+        private boolean removed;
+
+        private ChatQueue(String chatId) {
+            this.chatId = chatId;
+        }
+    }
+}
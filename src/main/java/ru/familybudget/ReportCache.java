@@ -0,0 +1,104 @@
+package ru.familybudget;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Read-through cache of report results, keyed by report and parameters.
+ * Every entry remembers the data version ({@link BudgetDB#getDataVersion()}) it was read at and is read again
+ * once the version has moved on, so a write makes everything read before it stale without knowing what was cached.
+ * Holds at most {@code maxSize} entries, evicting the least recently used one.
+ * A {@code null} result is returned but not cached, so a failed read is retried next time.
+ */
+final class ReportCache {
+    Logger logger = Logger.getLogger(ReportCache.class.getName());
+    private static final Metrics.Counter HITS =
+            Metrics.counter("budget_report_cache_total", "Report cache lookups", "result", "hit");
+    private static final Metrics.Counter MISSES =
+            Metrics.counter("budget_report_cache_total", "Report cache lookups", "result", "miss");
+    private static final Metrics.Counter STALE =
+            Metrics.counter("budget_report_cache_total", "Report cache lookups", "result", "stale");
+    private static final Metrics.Counter EVICTIONS = Metrics.counter("budget_report_cache_evictions_total",
+            "Report cache entries evicted to stay within the size", null, null);
+    private final Map<String, Entry> entries;
+
+    ReportCache(int maxSize) {
+        entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() <= maxSize) {
+                    return false;
+                }
+                EVICTIONS.increment();
+                logger.fine(() -> "Evicted " + eldest.getValue().stats(eldest.getKey()));
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Returns the result cached for the key at this version, or loads and caches it.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized <T> T get(String key, long version, Supplier<T> load) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.version == version) {
+            entry.hits++;
+            HITS.increment();
+            return (T) entry.value;
+        }
+        (entry == null ? MISSES : STALE).increment();
+        long start = System.nanoTime();
+        T value = load.get();
+        if (value != null) {
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(key, entry);
+            }
+            entry.loaded(version, value, System.nanoTime() - start);
+        }
+        return value;
+    }
+
+    synchronized List<Stats> stats() {
+        List<Stats> result = new ArrayList<>(entries.size());
+        entries.forEach((key, entry) -> result.add(entry.stats(key)));
+        return result;
+    }
+
+    /**
+     * @param loads times the result was read from the database, the first time included
+     */
+    record Stats(String key, long version, long hits, long loads, long lastLoadNanos, long totalLoadNanos) {
+        @Override
+        public String toString() {
+            return "%s: %d hits, %d loads, last %.2f ms, %.2f ms in all (version %d)".formatted(
+                    key, hits, loads, lastLoadNanos / 1e6, totalLoadNanos / 1e6, version);
+        }
+    }
+
+    private static final class Entry {
+        private long version;
+        private Object value;
+        private long hits;
+        private long loads;
+        private long lastLoadNanos;
+        private long totalLoadNanos;
+
+        private void loaded(long version, Object value, long nanos) {
+            this.version = version;
+            this.value = value;
+            loads++;
+            lastLoadNanos = nanos;
+            totalLoadNanos += nanos;
+        }
+
+        private Stats stats(String key) {
+            return new Stats(key, version, hits, loads, lastLoadNanos, totalLoadNanos);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package ru.familybudget;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Brings a database schema up to date at startup.
+ * Migrations are SQL scripts in {@code /db/migration} for the family databases and {@code /db/scheduler}
+ * for the Quartz job store, applied in order, each in its own transaction.
+ * The number of applied migrations is kept in {@code PRAGMA user_version}.
+ * New migrations are only ever appended to {@link #MIGRATIONS} and {@link #SCHEDULER_MIGRATIONS}.
+ */
+public final class SchemaMigrations {
+    private static final Logger logger = Logger.getLogger(SchemaMigrations.class.getName());
+    private static final List<String> MIGRATIONS = List.of(
+            "V1__base_schema.sql",
+            "V2__expense_aggregates.sql",
+            "V3__typed_expense_columns.sql",
+            "V4__expense_indexes.sql",
+            "V5__journal_state.sql",
+            "V6__budget_limits.sql",
+            "V7__expense_import.sql",
+            "V8__soft_delete.sql"
+    );
+    private static final List<String> SCHEDULER_MIGRATIONS = List.of(
+            "V1__quartz_job_store.sql"
+    );
+
+    private SchemaMigrations() {
+    }
+
+    public static int latestVersion() {
+        return MIGRATIONS.size();
+    }
+
+    public static void migrate(Connection conn) throws SQLException {
+        migrate(conn, latestVersion());
+    }
+
+    /**
+     * Applies migrations up to and including {@code targetVersion}.
+     */
+    public static void migrate(Connection conn, int targetVersion) throws SQLException {
+        migrate(conn, "/db/migration/", MIGRATIONS, targetVersion);
+    }
+
+    public static void migrateScheduler(Connection conn) throws SQLException {
+        migrate(conn, "/db/scheduler/", SCHEDULER_MIGRATIONS, SCHEDULER_MIGRATIONS.size());
+    }
+
+    private static void migrate(Connection conn, String directory, List<String> migrations, int targetVersion) throws SQLException {
+        int version = currentVersion(conn);
+        while (version < targetVersion) {
+            String migration = migrations.get(version);
+            logger.info("Applying migration " + migration);
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try (Statement stmt = conn.createStatement()) {
+                for (String sql : read(directory + migration).split(";")) {
+                    if (!sql.isBlank()) {
+                        stmt.execute(sql);
+                    }
+                }
+                stmt.execute("PRAGMA user_version=" + (version + 1) + ";");
+                conn.commit();
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+            version++;
+        }
+    }
+
+    public static int currentVersion(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA user_version;")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    private static String read(String migration) {
+        try (InputStream in = SchemaMigrations.class.getResourceAsStream(migration)) {
+            if (in == null) {
+                throw new IllegalStateException("Migration not found: " + migration);
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
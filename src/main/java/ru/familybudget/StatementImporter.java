@@ -0,0 +1,124 @@
+package ru.familybudget;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Imports the expenses of a bank statement (see {@link StatementReader}) into a family database.
+ * Transactions are read one at a time and inserted in batches of {@link #BATCH_SIZE}, one transaction each;
+ * income is skipped, and so are expenses imported before ({@link BudgetDB#importExpenses(List, int)}).
+ * The category comes from the bank's category, looked up like the category of a message, or, failing that,
+ * from a word of the description that is exactly a category name, alias or codename; otherwise it is "прочее".
+ * Description words are never matched fuzzily: card numbers, shop names and cities are a typo away from some alias.
+ */
+public class StatementImporter {
+    static final int BATCH_SIZE = 2000;
+    private static final int CATEGORY_CACHE_SIZE = 10_000;
+    private static final Pattern WORDS = Pattern.compile("[^\\p{L}]+");
+    private final BudgetDB budgetDB;
+    // A statement repeats the same few bank categories: the fuzzy lookup runs once per category
+    private final Map<String, Optional<Category>> categories = new HashMap<>();
+
+    public record Progress(int read, int inserted, int duplicates, int income, int invalid) {
+    }
+
+    public StatementImporter(BudgetDB budgetDB) {
+        this.budgetDB = budgetDB;
+    }
+
+    /**
+     * @param progress called after every batch with the totals so far
+     * @return the totals, or {@code null} if a batch could not be written
+     * @throws IllegalArgumentException with a message for the user if the file is not a statement
+     */
+    public Progress importStatement(InputStream in, String fileName, int userId, Consumer<Progress> progress) throws IOException {
+        int read = 0;
+        int inserted = 0;
+        int income = 0;
+        int invalid = 0;
+        List<Expense> batch = new ArrayList<>(BATCH_SIZE);
+        try (StatementReader reader = StatementReader.open(in, fileName)) {
+            StatementReader.Transaction transaction;
+            do {
+                transaction = reader.next();
+                if (transaction != null) {
+                    read++;
+                    Expense expense = transaction.kopecks() < 0 ? toExpense(transaction) : null;
+                    if (transaction.kopecks() >= 0) {
+                        income++;
+                    } else if (expense == null) {
+                        invalid++;
+                    } else {
+                        batch.add(expense);
+                    }
+                }
+                if (batch.size() == BATCH_SIZE || transaction == null && !batch.isEmpty()) {
+                    int written = budgetDB.importExpenses(batch, userId);
+                    if (written < 0) {
+                        return null;
+                    }
+                    inserted += written;
+                    batch.clear();
+                    progress.accept(new Progress(read, inserted, read - income - invalid - inserted,
+                            income, invalid + reader.getInvalid()));
+                }
+            } while (transaction != null);
+            return new Progress(read, inserted, read - income - invalid - inserted, income, invalid + reader.getInvalid());
+        }
+    }
+
+    private Expense toExpense(StatementReader.Transaction transaction) {
+        int rubles;
+        try {
+            rubles = transaction.rubles();
+        } catch (ArithmeticException e) {
+            return null;
+        }
+        if (rubles <= 0) {
+            return null;
+        }
+        Expense expense = new Expense();
+        expense.setAmount(rubles);
+        expense.setDate(transaction.date());
+        expense.setCategory(categorize(transaction.category(), transaction.description()).codename());
+        String rawText = transaction.description().isEmpty() ? transaction.category() : transaction.description();
+        expense.setRawText(rawText);
+        return expense;
+    }
+
+    Category categorize(String bankCategory, String description) {
+        Category category = bankCategory.isEmpty() ? null : lookup(bankCategory);
+        if (category != null) {
+            return category;
+        }
+        for (String word : WORDS.split(description.toLowerCase(Locale.ROOT))) {
+            if (word.length() >= 3) {
+                category = budgetDB.getCategoryIndex().lookupExact(word);
+                if (category != null) {
+                    return category;
+                }
+            }
+        }
+        return Category.OTHER;
+    }
+
+    private Category lookup(String text) {
+        Optional<Category> category = categories.get(text);
+        if (category == null) {
+            if (categories.size() >= CATEGORY_CACHE_SIZE) {
+                categories.clear();
+            }
+            category = Optional.ofNullable(budgetDB.getCategoryIndex().lookup(text));
+            categories.put(text, category);
+        }
+        return category.orElse(null);
+    }
+}
@@ -0,0 +1,366 @@
+package ru.familybudget;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.format.ResolverStyle;
+import java.time.temporal.ChronoField;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reads a bank statement exported as CSV or OFX one transaction at a time, so a statement of any size
+ * is imported in constant memory. The format is told by the file name or the first bytes,
+ * the encoding is UTF-8 if the start of the file decodes as UTF-8 and windows-1251 otherwise.
+ */
+abstract class StatementReader implements AutoCloseable {
+    private static final int SAMPLE_BYTES = 64 * 1024;
+    private static final Charset WINDOWS_1251 = Charset.forName("windows-1251");
+
+    /**
+     * @param kopecks negative for expenses, positive for income
+     */
+    record Transaction(LocalDateTime date, long kopecks, String description, String category) {
+        /**
+         * The amount of an expense in whole rubles, rounded half up.
+         */
+        int rubles() {
+            return BigDecimal.valueOf(-kopecks, 2).setScale(0, RoundingMode.HALF_UP).intValueExact();
+        }
+    }
+
+    protected final Reader reader;
+    private int invalid;
+
+    protected StatementReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    static StatementReader open(InputStream in, String fileName) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in, SAMPLE_BYTES);
+        buffered.mark(SAMPLE_BYTES);
+        byte[] sample = buffered.readNBytes(SAMPLE_BYTES);
+        buffered.reset();
+        Charset charset = isUtf8(sample) ? StandardCharsets.UTF_8 : WINDOWS_1251;
+        Reader reader = new BufferedReader(new InputStreamReader(buffered, charset));
+        String start = new String(sample, 0, Math.min(sample.length, 256), charset).stripLeading();
+        String name = fileName == null ? "" : fileName.toLowerCase(Locale.ROOT);
+        if (name.endsWith(".ofx") || name.endsWith(".qfx") || start.startsWith("OFXHEADER")
+                || start.startsWith("<?xml") || start.startsWith("<OFX>")) {
+            return new Ofx(reader);
+        }
+        return new Csv(reader);
+    }
+
+    /**
+     * @return the next transaction, or {@code null} at the end of the statement
+     * @throws IllegalArgumentException with a message for the user if the file is not a statement
+     */
+    abstract Transaction next() throws IOException;
+
+    /**
+     * Number of rows skipped because their date or amount could not be read.
+     */
+    int getInvalid() {
+        return invalid;
+    }
+
+    protected void skipInvalid() {
+        invalid++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private static boolean isUtf8(byte[] sample) {
+        try {
+            StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(sample, 0, utf8Boundary(sample)));
+            return true;
+        } catch (CharacterCodingException e) {
+            return false;
+        }
+    }
+
+    // The sample may end in the middle of a multi-byte character
+    private static int utf8Boundary(byte[] sample) {
+        int end = sample.length;
+        for (int i = 0; i < 3 && end > 0 && (sample[end - 1] & 0xC0) == 0x80; i++) {
+            end--;
+        }
+        if (end > 0 && (sample[end - 1] & 0xC0) == 0xC0) {
+            end--;
+        }
+        return end;
+    }
+
+    static long parseKopecks(String text) {
+        StringBuilder number = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isDigit(c) || c == '.' || c == ',') {
+                number.append(c);
+            } else if (c == '-' || c == '−') {
+                number.append('-');
+            }
+        }
+        String value = number.toString();
+        // 1,234.56 or 1 234,56
+        value = value.indexOf('.') >= 0 ? value.replace(",", "") : value.replace(',', '.');
+        return new BigDecimal(value).movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValueExact();
+    }
+
+    /**
+     * CSV with a header row. Columns are found by their names, the separator is ';', ',' or a tab,
+     * whichever the header has most of; fields may be quoted.
+     */
+    private static final class Csv extends StatementReader {
+        private static final List<String> DATE_COLUMNS = List.of("дата операции", "дата", "date");
+        private static final List<String> AMOUNT_COLUMNS = List.of("сумма платежа", "сумма в валюте счета", "сумма", "amount");
+        private static final List<String> DESCRIPTION_COLUMNS = List.of("описание", "назначение", "контрагент", "description", "payee", "memo");
+        private static final List<String> CATEGORY_COLUMNS = List.of("категория", "category");
+        private static final DateTimeFormatter DATE_FORMATTER = new DateTimeFormatterBuilder()
+                .appendPattern("[dd.MM.uuuu][uuuu-MM-dd][dd/MM/uuuu][ HH:mm[:ss]]['T'HH:mm[:ss]]")
+                .parseDefaulting(ChronoField.HOUR_OF_DAY, 0)
+                .parseDefaulting(ChronoField.MINUTE_OF_HOUR, 0)
+                .parseDefaulting(ChronoField.SECOND_OF_MINUTE, 0)
+                .toFormatter()
+                .withResolverStyle(ResolverStyle.STRICT);
+        private final List<String> fields = new ArrayList<>();
+        private final StringBuilder field = new StringBuilder();
+        private char separator;
+        private int date = -1;
+        private int amount = -1;
+        private int description = -1;
+        private int category = -1;
+
+        Csv(Reader reader) {
+            super(reader);
+        }
+
+        @Override
+        Transaction next() throws IOException {
+            if (separator == 0) {
+                readHeader();
+            }
+            while (readRecord()) {
+                if (fields.stream().allMatch(String::isBlank)) {
+                    continue;
+                }
+                if (fields.size() <= Math.max(date, amount)) {
+                    skipInvalid();
+                    continue;
+                }
+                try {
+                    return new Transaction(
+                            LocalDateTime.parse(fields.get(date).strip(), DATE_FORMATTER),
+                            parseKopecks(fields.get(amount)),
+                            description >= 0 && description < fields.size() ? fields.get(description).strip() : "",
+                            category >= 0 && category < fields.size() ? fields.get(category).strip() : "");
+                } catch (DateTimeParseException | ArithmeticException | NumberFormatException e) {
+                    skipInvalid();
+                }
+            }
+            return null;
+        }
+
+        private void readHeader() throws IOException {
+            reader.mark(SAMPLE_BYTES);
+            StringBuilder line = new StringBuilder();
+            for (int c = reader.read(); c >= 0 && c != '\n'; c = reader.read()) {
+                line.append((char) c);
+            }
+            reader.reset();
+            separator = mostFrequent(line.toString().replace("\uFEFF", ""), ";,\t");
+            if (!readRecord()) {
+                throw new IllegalArgumentException("Файл пустой");
+            }
+            List<String> header = fields.stream()
+                    .map(name -> name.replace("\uFEFF", "").strip().toLowerCase(Locale.ROOT))
+                    .toList();
+            date = column(header, DATE_COLUMNS);
+            amount = column(header, AMOUNT_COLUMNS);
+            description = column(header, DESCRIPTION_COLUMNS);
+            category = column(header, CATEGORY_COLUMNS);
+            if (date < 0 || amount < 0) {
+                throw new IllegalArgumentException("В первой строке нет столбцов с датой и суммой операции");
+            }
+        }
+
+        /**
+         * Reads the fields of the next record, which may span lines inside quotes.
+         *
+         * @return false at the end of the file
+         */
+        private boolean readRecord() throws IOException {
+            fields.clear();
+            field.setLength(0);
+            boolean quoted = false;
+            int c = reader.read();
+            if (c < 0) {
+                return false;
+            }
+            for (; c >= 0; c = reader.read()) {
+                if (quoted) {
+                    if (c == '"') {
+                        reader.mark(1);
+                        if (reader.read() == '"') {
+                            field.append('"');
+                        } else {
+                            reader.reset();
+                            quoted = false;
+                        }
+                    } else {
+                        field.append((char) c);
+                    }
+                } else if (c == '"' && field.isEmpty()) {
+                    quoted = true;
+                } else if (c == separator) {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else if (c == '\n') {
+                    break;
+                } else if (c != '\r') {
+                    field.append((char) c);
+                }
+            }
+            fields.add(field.toString());
+            return true;
+        }
+
+        // The first column whose name contains a candidate, trying candidates in order of preference
+        private static int column(List<String> header, List<String> candidates) {
+            for (String candidate : candidates) {
+                for (int i = 0; i < header.size(); i++) {
+                    if (header.get(i).contains(candidate)) {
+                        return i;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        private static char mostFrequent(String line, String candidates) {
+            char best = candidates.charAt(0);
+            long bestCount = -1;
+            for (char candidate : candidates.toCharArray()) {
+                long count = line.chars().filter(c -> c == candidate).count();
+                if (count > bestCount) {
+                    best = candidate;
+                    bestCount = count;
+                }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * OFX 1.x (SGML, leaf elements not closed) or 2.x (XML): every {@code STMTTRN} aggregate is a transaction
+     * with its amount in {@code TRNAMT}, date in {@code DTPOSTED} and description in {@code NAME} and {@code MEMO}.
+     */
+    private static final class Ofx extends StatementReader {
+        private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("uuuuMMddHHmmss")
+                .withResolverStyle(ResolverStyle.STRICT);
+        private final StringBuilder tag = new StringBuilder();
+        private final StringBuilder text = new StringBuilder();
+        private boolean started;
+
+        Ofx(Reader reader) {
+            super(reader);
+        }
+
+        @Override
+        Transaction next() throws IOException {
+            String amount = null;
+            String posted = null;
+            String name = "";
+            String memo = "";
+            boolean inTransaction = false;
+            for (String element = readTag(); element != null; element = readTag()) {
+                started = true;
+                switch (element) {
+                    case "STMTTRN" -> {
+                        inTransaction = true;
+                        amount = null;
+                        posted = null;
+                        name = "";
+                        memo = "";
+                    }
+                    case "/STMTTRN" -> {
+                        if (!inTransaction) {
+                            continue;
+                        }
+                        try {
+                            String digits = posted == null ? "" : posted.substring(0, Math.min(posted.length(), 14));
+                            String description = memo.isEmpty() || name.contains(memo) ? name
+                                    : name.isEmpty() ? memo : name + " " + memo;
+                            return new Transaction(
+                                    LocalDateTime.parse(digits.length() == 8 ? digits + "000000" : digits, DATE_FORMATTER),
+                                    parseKopecks(amount == null ? "" : amount), description, "");
+                        } catch (DateTimeParseException | ArithmeticException | NumberFormatException e) {
+                            skipInvalid();
+                            inTransaction = false;
+                        }
+                    }
+                    case "TRNAMT" -> amount = readText();
+                    case "DTPOSTED" -> posted = readText();
+                    case "NAME" -> name = readText();
+                    case "MEMO" -> memo = readText();
+                    default -> {
+                    }
+                }
+            }
+            if (!started) {
+                throw new IllegalArgumentException("Файл не похож на выписку OFX");
+            }
+            return null;
+        }
+
+        // Skips to the next tag and returns its name, with a leading '/' for closing tags
+        private String readTag() throws IOException {
+            int c;
+            do {
+                c = reader.read();
+            } while (c >= 0 && c != '<');
+            if (c < 0) {
+                return null;
+            }
+            tag.setLength(0);
+            for (c = reader.read(); c >= 0 && c != '>'; c = reader.read()) {
+                tag.append((char) c);
+            }
+            return tag.toString().strip().toUpperCase(Locale.ROOT);
+        }
+
+        // The value of a leaf element: the text up to the next tag
+        private String readText() throws IOException {
+            text.setLength(0);
+            reader.mark(1);
+            for (int c = reader.read(); c >= 0 && c != '<'; c = reader.read()) {
+                text.append((char) c);
+                reader.mark(1);
+            }
+            reader.reset();
+            return text.toString().strip()
+                    .replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&amp;", "&");
+        }
+    }
+}
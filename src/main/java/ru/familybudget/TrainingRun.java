@@ -0,0 +1,84 @@
+package ru.familybudget;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.quartz.CronScheduleBuilder;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Starts the bot against a throwaway database without connecting to Telegram, then exits.
+ * <ul>
+ *     <li>{@code --startup}: stops once the bot is constructed and the database is open, to measure startup;</li>
+ *     <li>otherwise also adds expenses and builds every report, chart and export, so that
+ *     {@code -XX:ArchiveClassesAtExit} records the classes the bot loads in normal use (see the appcds profile).</li>
+ * </ul>
+ * Prints the resident memory as {@code key=value} lines; scripts/measure-startup.sh times the runs.
+ */
+public class TrainingRun {
+    private static final String UPDATE_JSON = """
+            {"update_id": 1, "message": {"message_id": 1, "date": 1700000000,
+             "chat": {"id": 1, "type": "private"}, "from": {"id": 1, "is_bot": false, "first_name": "A"},
+             "text": "250 продукты"}}""";
+
+    public static void main(String[] args) throws Exception {
+        boolean startupOnly = List.of(args).contains("--startup");
+        Path dir = Files.createTempDirectory("familybudget-training");
+        var families = new FamilyRegistry(List.of(new Family("training", List.of("1"),
+                new BudgetDB("jdbc:sqlite:" + dir.resolve("budget.db")))), 1, 30);
+        new FamilyBudgetBot("0:training", "training_bot", families,
+                new BackupService(dir.resolve("backup"), 1, false));
+        Family family = families.familyOf("1");
+        BudgetDB budgetDB = families.acquire(family);
+        if (!startupOnly) {
+            exercise(budgetDB, family);
+        }
+        printMemory();
+        budgetDB.close();
+        // The bot's HTTP client and the update dispatcher keep non-daemon threads
+        System.exit(0);
+    }
+
+    private static void exercise(BudgetDB budgetDB, Family family) throws IOException {
+        new ObjectMapper().readValue(UPDATE_JSON, Update.class);
+        CronScheduleBuilder.cronSchedule("0 0 21 * * ?").build();
+        for (String text : List.of("250 продукты", "1200,50 кафе вчера", "3000 такси 01.01.2024", "99 продуктв")) {
+            Expense expense = ExpenseParser.parse(text);
+            if (expense != null) {
+                budgetDB.insertExpense(expense, 1, text);
+            }
+        }
+        budgetDB.getTodaySum();
+        budgetDB.getMonthSum();
+        budgetDB.getLastExpenses();
+        budgetDB.getAllCategories();
+        budgetDB.getBudgetStatus();
+        budgetDB.getExpensePage(ExpenseFilter.ALL, 0, true);
+        var charts = new ChartRenderer();
+        charts.getMonthChart(family.getName(), "training", budgetDB.getDataVersion(), budgetDB.getMonthStatistic()).getPng();
+        charts.getTrendChart(family.getName(), "training", budgetDB.getDataVersion(), budgetDB.getTrend(12)).getPng();
+        try (InputStream excel = new ExcelExporter().export(budgetDB)) {
+            if (excel != null) {
+                excel.transferTo(OutputStream.nullOutputStream());
+            }
+        }
+    }
+
+    private static void printMemory() throws IOException {
+        Path status = Path.of("/proc/self/status");
+        if (!Files.exists(status)) {
+            return;
+        }
+        for (String line : Files.readAllLines(status)) {
+            if (line.startsWith("VmRSS:") || line.startsWith("VmHWM:")) {
+                String[] parts = line.split("\\s+");
+                System.out.println((line.startsWith("VmRSS:") ? "rss_kb=" : "peak_rss_kb=") + parts[1]);
+            }
+        }
+    }
+}
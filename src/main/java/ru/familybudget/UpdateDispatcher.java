@@ -0,0 +1,145 @@
+package ru.familybudget;
+
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Moves update handling off the polling thread.
+ * Updates of one chat are handled strictly in order, one at a time; different chats run concurrently.
+ * Quick commands run on virtual threads, heavy report commands on a small fixed pool.
+ * The number of queued updates is bounded globally and per chat.
+ * A chat has a queue only while it has updates queued or being handled.
+ */
+public class UpdateDispatcher {
+    Logger logger = Logger.getLogger(UpdateDispatcher.class.getName());
+    private static final int MAX_PENDING = 1000;
+    private static final int MAX_PENDING_PER_CHAT = 50;
+    private static final int HEAVY_THREADS = 2;
+    private final Consumer<Update> handler;
+    private final Function<Update, String> commandOf;
+    private final Set<String> heavyCommands;
+    private final ExecutorService quickExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private final ExecutorService heavyExecutor = Executors.newFixedThreadPool(HEAVY_THREADS, new ReportThreadFactory());
+    // Guarded by itself, as are the queues in it
+    private final Map<Long, ChatQueue> queues = new HashMap<>();
+    private final Semaphore pending = new Semaphore(MAX_PENDING);
+    private final Metrics.Counter rejected = Metrics.counter("budget_updates_rejected_total",
+            "Updates rejected because too many were pending", null, null);
+
+    public UpdateDispatcher(Consumer<Update> handler, Function<Update, String> commandOf, Set<String> heavyCommands) {
+        this.handler = handler;
+        this.commandOf = commandOf;
+        this.heavyCommands = heavyCommands;
+        Metrics.gauge("budget_updates_pending", "Updates queued or being handled", null, null,
+                () -> MAX_PENDING - pending.availablePermits());
+    }
+
+    /**
+     * Queues the update for its chat.
+     *
+     * @return false if the update was rejected because too many updates are pending
+     */
+    public boolean dispatch(Update update) {
+        if (!pending.tryAcquire()) {
+            rejected.increment();
+            return false;
+        }
+        long chatId = chatIdOf(update);
+        synchronized (queues) {
+            ChatQueue queue = queues.get(chatId);
+            if (queue == null) {
+                queue = new ChatQueue(chatId);
+                queues.put(chatId, queue);
+                queue.updates.add(update);
+                scheduleNext(queue);
+                return true;
+            }
+            if (queue.updates.size() >= MAX_PENDING_PER_CHAT) {
+                pending.release();
+                rejected.increment();
+                return false;
+            }
+            queue.updates.add(update);
+        }
+        return true;
+    }
+
+    public void shutdown() {
+        quickExecutor.shutdown();
+        heavyExecutor.shutdown();
+    }
+
+    static long chatIdOf(Update update) {
+        if (update.hasMessage()) {
+            return update.getMessage().getChatId();
+        }
+        if (update.hasCallbackQuery() && update.getCallbackQuery().getMessage() != null) {
+            return update.getCallbackQuery().getMessage().getChatId();
+        }
+        return 0;
+    }
+
+    // Called with the queues monitor held
+    private void scheduleNext(ChatQueue queue) {
+        Update update = queue.updates.peek();
+        String command = commandOf.apply(update);
+        Executor executor = heavyCommands.contains(command) ? heavyExecutor : quickExecutor;
+        executor.execute(() -> run(queue, update, command));
+    }
+
+    private void run(ChatQueue queue, Update update, String command) {
+        long start = System.nanoTime();
+        try {
+            handler.accept(update);
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+        } finally {
+            Metrics.histogram("budget_command_duration_seconds", "Time to handle an update, by command", "command", command)
+                    .observeNanos(System.nanoTime() - start);
+            pending.release();
+            synchronized (queues) {
+                queue.updates.poll();
+                if (queue.updates.isEmpty()) {
+                    queues.remove(queue.chatId);
+                } else {
+                    scheduleNext(queue);
+                }
+            }
+        }
+    }
+
+    // The first update is the one being handled
+    private static final class ChatQueue {
+        private final long chatId;
+        private final ArrayDeque<Update> updates = new ArrayDeque<>();
+
+        private ChatQueue(long chatId) {
+            this.chatId = chatId;
+        }
+    }
+
+    private static final class ReportThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "report-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
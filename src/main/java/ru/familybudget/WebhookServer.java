@@ -0,0 +1,102 @@
+package ru.familybudget;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.telegram.telegrambots.meta.api.methods.updates.SetWebhook;
+import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Receives updates that Telegram POSTs to the webhook, instead of long polling for them.
+ * Plain HTTP on virtual threads: TLS is terminated by a reverse proxy in front of it.
+ * Updates go to {@link FamilyBudgetBot#onUpdateReceived(Update)}, so they share the update dispatcher
+ * with polling mode, and the request is answered as soon as the update is queued.
+ */
+public class WebhookServer {
+    Logger logger = Logger.getLogger(WebhookServer.class.getName());
+    private static final String SECRET_HEADER = "X-Telegram-Bot-Api-Secret-Token";
+    private static final int MAX_BODY_BYTES = 1024 * 1024;
+    private final FamilyBudgetBot bot;
+    private final String url;
+    private final String secret;
+    private final HttpServer server;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Metrics.Counter received = Metrics.counter("budget_webhook_updates_total",
+            "Webhook requests, by result", "result", "accepted");
+    private final Metrics.Counter refused = Metrics.counter("budget_webhook_updates_total",
+            "Webhook requests, by result", "result", "refused");
+
+    /**
+     * @param url    public HTTPS address registered with Telegram
+     * @param path   path the reverse proxy forwards the webhook to
+     * @param secret value Telegram sends in {@code X-Telegram-Bot-Api-Secret-Token}; empty to accept any request
+     */
+    public WebhookServer(FamilyBudgetBot bot, String url, String host, int port, String path, String secret) throws IOException {
+        this.bot = bot;
+        this.url = url;
+        this.secret = secret;
+        server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.createContext(path, this::handle);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+    }
+
+    /**
+     * Starts listening, then asks Telegram to deliver updates to the webhook.
+     */
+    public void start() throws TelegramApiException {
+        server.start();
+        logger.info("Webhook listening on " + server.getAddress());
+        SetWebhook setWebhook = SetWebhook.builder()
+                .url(url)
+                .secretToken(secret.isEmpty() ? null : secret)
+                .allowedUpdates(List.of("message", "callback_query"))
+                .build();
+        bot.execute(setWebhook);
+        logger.info("Webhook registered: " + url);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            if (!secret.isEmpty() && !MessageDigest.isEqual(
+                    secret.getBytes(StandardCharsets.UTF_8),
+                    String.valueOf(exchange.getRequestHeaders().getFirst(SECRET_HEADER)).getBytes(StandardCharsets.UTF_8))) {
+                refused.increment();
+                exchange.sendResponseHeaders(403, -1);
+                return;
+            }
+            Update update;
+            try (InputStream body = exchange.getRequestBody()) {
+                byte[] json = body.readNBytes(MAX_BODY_BYTES + 1);
+                if (json.length > MAX_BODY_BYTES) {
+                    refused.increment();
+                    exchange.sendResponseHeaders(413, -1);
+                    return;
+                }
+                update = objectMapper.readValue(json, Update.class);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Malformed webhook update: " + e.getMessage());
+                refused.increment();
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            received.increment();
+            bot.onUpdateReceived(update);
+            exchange.sendResponseHeaders(200, -1);
+        }
+    }
+}
@@ -1,9 +1,9 @@
-create table budget(
+create table if not exists budget(
     codename varchar(255) primary key,
     daily_limit integer
 );
 
-create table expense(
+create table if not exists expense(
     id integer primary key,
     user_id integer,
     amount integer,
@@ -13,14 +13,14 @@ create table expense(
     FOREIGN KEY(category_codename) REFERENCES category(codename)
 );
 
-create table category(
+create table if not exists category(
     codename varchar(255) primary key,
     name varchar(255),
     is_base_expense boolean,
     aliases text
 );
 
-insert into category(codename, name, is_base_expense, aliases)
+insert or ignore into category(codename, name, is_base_expense, aliases)
 values
     ('products', 'продукты', true, 'магазин, магаз'),
     ('health', 'здоровье', true, 'больница, аптека, лекарства, таблетки'),
@@ -39,4 +39,4 @@ values
     ('relax', 'отдых', false, 'поездка, море, путешествия, отпуск'),
     ('other', 'прочее', false, '');
 
-insert into budget(codename, daily_limit) values ('base', 500);
+insert or ignore into budget(codename, daily_limit) values ('base', 500);
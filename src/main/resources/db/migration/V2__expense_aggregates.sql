@@ -0,0 +1,21 @@
+create table if not exists daily_total(
+    day text primary key,
+    amount integer not null
+);
+
+create table if not exists monthly_category_total(
+    month text,
+    category_codename varchar(255),
+    amount integer not null,
+    primary key (month, category_codename)
+);
+
+insert into daily_total(day, amount)
+select substr(created, 1, 10), sum(amount) from expense
+where not exists (select 1 from daily_total)
+group by 1;
+
+insert into monthly_category_total(month, category_codename, amount)
+select substr(created, 1, 7), category_codename, sum(amount) from expense
+where not exists (select 1 from monthly_category_total)
+group by 1, 2;
@@ -0,0 +1,16 @@
+create table expense_new(
+    id integer primary key,
+    user_id integer,
+    amount integer,
+    created text not null,
+    category_codename varchar(255),
+    raw_text text,
+    FOREIGN KEY(category_codename) REFERENCES category(codename)
+);
+
+insert into expense_new(id, user_id, amount, created, category_codename, raw_text)
+select id, user_id, amount, created, category_codename, raw_text from expense;
+
+drop table expense;
+
+alter table expense_new rename to expense;
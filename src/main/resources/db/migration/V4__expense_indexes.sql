@@ -0,0 +1,3 @@
+create index if not exists idx_expense_created on expense(created, category_codename, amount);
+
+create index if not exists idx_expense_user_created on expense(user_id, created);
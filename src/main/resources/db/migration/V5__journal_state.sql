@@ -0,0 +1,7 @@
+-- sequence number of the last write-behind journal record committed to the expense table
+create table if not exists journal_state(
+    id integer primary key check (id = 1),
+    last_seq integer not null
+);
+
+insert or ignore into journal_state(id, last_seq) values (1, 0);
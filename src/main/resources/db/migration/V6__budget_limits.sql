@@ -0,0 +1,4 @@
+-- 'base' limits apply to categories with is_base_expense and 'extra' limits to the rest, null means no limit
+alter table budget add column monthly_limit integer;
+
+insert or ignore into budget(codename, daily_limit, monthly_limit) values ('extra', null, null);
@@ -0,0 +1,20 @@
+-- 64-bit hash of created, amount and raw_text of expenses imported from bank statements.
+-- The unique index lets an imported expense in only once, however often the statement is imported.
+alter table expense add column import_hash integer;
+
+create unique index if not exists idx_expense_import_hash on expense(import_hash) where import_hash is not null;
+
+-- category names banks use in their exports
+update category set aliases = aliases || ', супермаркеты, продуктовые магазины' where codename = 'products';
+update category set aliases = aliases || ', аптеки, медицина, медицинские услуги' where codename = 'health';
+update category set aliases = aliases || ', коммунальные услуги, жкх, госуслуги' where codename = 'bills';
+update category set aliases = aliases || ', рестораны, фастфуд, кафе и рестораны' where codename = 'food';
+update category set aliases = aliases || ', мобильная связь, интернет и тв' where codename = 'telecom';
+update category set aliases = aliases || ', местный транспорт, каршеринг' where codename = 'transport';
+update category set aliases = aliases || ', спорттовары, фитнес' where codename = 'sport';
+update category set aliases = aliases || ', цифровые товары' where codename = 'subscriptions';
+update category set aliases = aliases || ', топливо, азс, автоуслуги, парковки' where codename = 'car';
+update category set aliases = aliases || ', одежда и обувь, маркетплейсы, дом и ремонт, электроника' where codename = 'shopping';
+update category set aliases = aliases || ', салоны красоты, косметика' where codename = 'beauty';
+update category set aliases = aliases || ', кино и театры' where codename = 'entertainment';
+update category set aliases = aliases || ', отели, авиабилеты, ж/д билеты, турагентства' where codename = 'relax';
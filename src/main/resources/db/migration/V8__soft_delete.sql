@@ -0,0 +1,33 @@
+-- when the expense was deleted, null while it is live. Deleted expenses stay in the table, out of every report,
+-- until compaction purges them, so a deletion can be undone
+alter table expense add column deleted_at text;
+
+-- append-only log of the changes to expense, written in the transaction of the change.
+-- seq only grows and is never reused (autoincrement), so a reader can resume after the last seq it has seen.
+-- user_id is the user who made the change, null for a purge. Expenses from before this migration have no insert entry
+create table if not exists expense_change(
+    seq integer primary key autoincrement,
+    expense_id integer not null,
+    action text not null check (action in ('insert', 'delete', 'restore', 'purge')),
+    user_id integer,
+    changed text not null,
+    amount integer not null,
+    created text not null,
+    category_codename varchar(255)
+);
+
+create index if not exists idx_expense_change_expense on expense_change(expense_id);
+
+-- the deletions a user can still undo, newest first
+create index if not exists idx_expense_change_user_delete on expense_change(user_id) where action = 'delete';
+
+-- reports read live expenses only: partial indexes keep those reads covered and skip the deleted rows
+drop index if exists idx_expense_created;
+
+create index if not exists idx_expense_created on expense(created, category_codename, amount) where deleted_at is null;
+
+drop index if exists idx_expense_user_created;
+
+create index if not exists idx_expense_user_created on expense(user_id, created) where deleted_at is null;
+
+create index if not exists idx_expense_deleted on expense(deleted_at) where deleted_at is not null;
@@ -0,0 +1,132 @@
+-- Quartz JDBC job store (JobStoreTX with HSQLDBDelegate), adapted from the tables_*.sql shipped with Quartz.
+-- Kept in scheduler.db, apart from the family databases, so that scheduler writes never touch a budget
+create table if not exists qrtz_job_details(
+    sched_name text not null,
+    job_name text not null,
+    job_group text not null,
+    description text,
+    job_class_name text not null,
+    is_durable boolean not null,
+    is_nonconcurrent boolean not null,
+    is_update_data boolean not null,
+    requests_recovery boolean not null,
+    job_data blob,
+    primary key (sched_name, job_name, job_group)
+);
+
+create table if not exists qrtz_triggers(
+    sched_name text not null,
+    trigger_name text not null,
+    trigger_group text not null,
+    job_name text not null,
+    job_group text not null,
+    description text,
+    next_fire_time integer,
+    prev_fire_time integer,
+    priority integer,
+    trigger_state text not null,
+    trigger_type text not null,
+    start_time integer not null,
+    end_time integer,
+    calendar_name text,
+    misfire_instr integer,
+    job_data blob,
+    primary key (sched_name, trigger_name, trigger_group),
+    foreign key (sched_name, job_name, job_group) references qrtz_job_details(sched_name, job_name, job_group)
+);
+
+create table if not exists qrtz_simple_triggers(
+    sched_name text not null,
+    trigger_name text not null,
+    trigger_group text not null,
+    repeat_count integer not null,
+    repeat_interval integer not null,
+    times_triggered integer not null,
+    primary key (sched_name, trigger_name, trigger_group),
+    foreign key (sched_name, trigger_name, trigger_group) references qrtz_triggers(sched_name, trigger_name, trigger_group)
+);
+
+create table if not exists qrtz_cron_triggers(
+    sched_name text not null,
+    trigger_name text not null,
+    trigger_group text not null,
+    cron_expression text not null,
+    time_zone_id text,
+    primary key (sched_name, trigger_name, trigger_group),
+    foreign key (sched_name, trigger_name, trigger_group) references qrtz_triggers(sched_name, trigger_name, trigger_group)
+);
+
+create table if not exists qrtz_simprop_triggers(
+    sched_name text not null,
+    trigger_name text not null,
+    trigger_group text not null,
+    str_prop_1 text,
+    str_prop_2 text,
+    str_prop_3 text,
+    int_prop_1 integer,
+    int_prop_2 integer,
+    long_prop_1 integer,
+    long_prop_2 integer,
+    dec_prop_1 numeric,
+    dec_prop_2 numeric,
+    bool_prop_1 boolean,
+    bool_prop_2 boolean,
+    primary key (sched_name, trigger_name, trigger_group),
+    foreign key (sched_name, trigger_name, trigger_group) references qrtz_triggers(sched_name, trigger_name, trigger_group)
+);
+
+create table if not exists qrtz_blob_triggers(
+    sched_name text not null,
+    trigger_name text not null,
+    trigger_group text not null,
+    blob_data blob,
+    primary key (sched_name, trigger_name, trigger_group),
+    foreign key (sched_name, trigger_name, trigger_group) references qrtz_triggers(sched_name, trigger_name, trigger_group)
+);
+
+create table if not exists qrtz_calendars(
+    sched_name text not null,
+    calendar_name text not null,
+    calendar blob not null,
+    primary key (sched_name, calendar_name)
+);
+
+create table if not exists qrtz_paused_trigger_grps(
+    sched_name text not null,
+    trigger_group text not null,
+    primary key (sched_name, trigger_group)
+);
+
+create table if not exists qrtz_fired_triggers(
+    sched_name text not null,
+    entry_id text not null,
+    trigger_name text not null,
+    trigger_group text not null,
+    instance_name text not null,
+    fired_time integer not null,
+    sched_time integer not null,
+    priority integer not null,
+    state text not null,
+    job_name text,
+    job_group text,
+    is_nonconcurrent boolean,
+    requests_recovery boolean,
+    primary key (sched_name, entry_id)
+);
+
+create table if not exists qrtz_scheduler_state(
+    sched_name text not null,
+    instance_name text not null,
+    last_checkin_time integer not null,
+    checkin_interval integer not null,
+    primary key (sched_name, instance_name)
+);
+
+create table if not exists qrtz_locks(
+    sched_name text not null,
+    lock_name text not null,
+    primary key (sched_name, lock_name)
+);
+
+-- the misfire handler looks for waiting triggers whose next fire time has passed
+create index if not exists idx_qrtz_t_nft_st on qrtz_triggers(sched_name, trigger_state, next_fire_time);
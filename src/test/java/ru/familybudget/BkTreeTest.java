@@ -0,0 +1,59 @@
+package ru.familybudget;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BkTreeTest {
+    private final BkTree<String> tree = new BkTree<>(Map.of(
+            "кофе", "food", "кафе", "food", "пиво", "harmful", "такси", "transport", "аптека", "health"));
+
+    @Test
+    void exactKeyIsAtDistanceZero() {
+        assertEquals(List.of("transport"), tree.closest("такси", 1));
+    }
+
+    @Test
+    void findsKeyWithinDistance() {
+        assertEquals(List.of("health"), tree.closest("аптеко", 1));
+        assertEquals(List.of("transport"), tree.closest("такса", 1));
+    }
+
+    @Test
+    void ignoresKeysBeyondDistance() {
+        assertEquals(List.of(), tree.closest("такос", 1));
+        assertEquals(List.of(), tree.closest("пивас", 1));
+        assertEquals(List.of(), tree.closest("кофта", 1));
+    }
+
+    @Test
+    void returnsEveryValueTiedAtClosestDistance() {
+        BkTree<String> cats = new BkTree<>(Map.of("кот", "cat", "кит", "whale", "кормить", "feed"));
+        assertEquals(List.of("cat", "whale"), cats.closest("кат", 1).stream().sorted().toList());
+        assertEquals(List.of("cat"), cats.closest("кот", 1));
+    }
+
+    @Test
+    void returnsValueOnceForSeveralKeys() {
+        // кофе and кафе are both one edit away
+        assertEquals(List.of("food"), tree.closest("кофе", 0));
+        assertEquals(List.of("food"), tree.closest("куфе", 1));
+    }
+
+    @Test
+    void emptyTreeFindsNothing() {
+        assertEquals(List.of(), new BkTree<String>(Map.of()).closest("кофе", 2));
+    }
+
+    @Test
+    void distanceIsLevenshtein() {
+        assertEquals(0, BkTree.distance("кофе", "кофе"));
+        assertEquals(1, BkTree.distance("кофе", "кафе"));
+        assertEquals(1, BkTree.distance("такси", "такс"));
+        assertEquals(2, BkTree.distance("такос", "такси"));
+        assertEquals(4, BkTree.distance("", "пиво"));
+    }
+}
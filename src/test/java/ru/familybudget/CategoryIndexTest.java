@@ -0,0 +1,93 @@
+package ru.familybudget;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Lookups against the categories and aliases seeded by the migrations.
+ */
+class CategoryIndexTest {
+    private static Connection connection;
+    private static CategoryIndex index;
+
+    @BeforeAll
+    static void load() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        SchemaMigrations.migrate(connection);
+        index = new CategoryIndex();
+        index.reload(connection);
+    }
+
+    @AfterAll
+    static void close() throws SQLException {
+        connection.close();
+    }
+
+    @Test
+    void exactNameAliasAndCodename() {
+        assertEquals("products", codename(index.lookup("продукты")));
+        assertEquals("products", codename(index.lookup("  Продукты ")));
+        assertEquals("transport", codename(index.lookup("такси")));
+        assertEquals("car", codename(index.lookup("car")));
+    }
+
+    @Test
+    void typoInLongWord() {
+        assertEquals("products", codename(index.lookup("продуктв")));
+        assertEquals("health", codename(index.lookup("аптеко")));
+        assertEquals("transport", codename(index.lookup("такса")));
+    }
+
+    @Test
+    void nothingBeyondAllowedTypos() {
+        // Two edits from a five- to seven-letter alias
+        assertNull(index.lookup("пивас"));
+        assertNull(index.lookup("такос"));
+        assertNull(index.lookup("кофта"));
+        // No typos at all below five letters, and never against codenames
+        assertNull(index.lookup("вода"));
+        assertNull(index.lookup("вино"));
+        assertNull(index.lookup("card"));
+        assertNull(index.lookup(null));
+    }
+
+    @Test
+    void ambiguousTypoIsNotGuessed() {
+        assertNull(index.lookup("салог"));
+        assertEquals(List.of("beauty", "bills"), index.ambiguous("салог").stream().map(Category::codename).sorted().toList());
+    }
+
+    @Test
+    void ambiguousIsEmptyForClearInput() {
+        assertEquals(List.of(), index.ambiguous("продукты"));
+        assertEquals(List.of(), index.ambiguous("продуктв"));
+        assertEquals(List.of(), index.ambiguous("пивас"));
+    }
+
+    @Test
+    void exactLookupDoesNotFuzz() {
+        assertEquals("products", codename(index.lookupExact("продукты")));
+        assertNull(index.lookupExact("продуктв"));
+    }
+
+    @Test
+    void maxTyposGrowsWithLength() {
+        assertEquals(0, CategoryIndex.maxTypos(4));
+        assertEquals(1, CategoryIndex.maxTypos(5));
+        assertEquals(1, CategoryIndex.maxTypos(7));
+        assertEquals(2, CategoryIndex.maxTypos(8));
+    }
+
+    private static String codename(Category category) {
+        return category == null ? null : category.codename();
+    }
+}
@@ -0,0 +1,119 @@
+package ru.familybudget;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Parsing and encoding of the /expenses filter, which travels in the callback data of the page buttons.
+ */
+class ExpenseFilterTest {
+    // A Telegram user ID takes up to 10 digits
+    private static final String USER_ID = "9876543210";
+    private static final LocalDate FROM = LocalDate.of(2024, 9, 1);
+    private static final LocalDate TO = LocalDate.of(2024, 9, 30);
+    private static Connection connection;
+    private static CategoryIndex categories;
+
+    @BeforeAll
+    static void load() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        SchemaMigrations.migrate(connection);
+        categories = new CategoryIndex();
+        categories.reload(connection);
+    }
+
+    @AfterAll
+    static void close() throws SQLException {
+        connection.close();
+    }
+
+    @Test
+    void encodeDecodeRoundTrip() {
+        for (ExpenseFilter filter : List.of(
+                ExpenseFilter.ALL,
+                new ExpenseFilter("food", null, null, null),
+                new ExpenseFilter(null, USER_ID, null, null),
+                new ExpenseFilter(null, null, FROM, FROM),
+                new ExpenseFilter("entertainment", USER_ID, FROM, TO))) {
+            assertEquals(filter, ExpenseFilter.decode(filter.encode()));
+        }
+        assertEquals(":::", ExpenseFilter.ALL.encode());
+        assertEquals("food:" + USER_ID + ":20240901:20240930", new ExpenseFilter("food", USER_ID, FROM, TO).encode());
+    }
+
+    @Test
+    void decodeRejectsForeignData() {
+        for (String text : List.of("", "food", "food:1:20240901", "food::20240901:", "food:abc::", "food::20240931:20241001")) {
+            assertThrows(IllegalArgumentException.class, () -> ExpenseFilter.decode(text), text);
+        }
+    }
+
+    @Test
+    void callbackDataFitsWithCursor() throws SQLException {
+        // A billion expenses in a family database is far beyond any real one
+        long cursor = 999_999_999;
+        for (String codename : codenames()) {
+            ExpenseFilter filter = new ExpenseFilter(codename, USER_ID, FROM, TO);
+            for (boolean older : List.of(true, false)) {
+                String data = FamilyBudgetBot.expensesCallback(older, cursor, filter);
+                assertNotNull(data, codename);
+                assertTrue(data.getBytes(StandardCharsets.UTF_8).length <= 64, data);
+                // Read back the way FamilyBudgetBot.handleCallback does
+                String[] parts = data.split(":", 4);
+                assertEquals(older ? "o" : "n", parts[1]);
+                assertEquals(cursor, Long.parseLong(parts[2]));
+                assertEquals(filter, ExpenseFilter.decode(parts[3]));
+            }
+        }
+    }
+
+    @Test
+    void callbackDataTooLongIsDropped() {
+        ExpenseFilter filter = new ExpenseFilter("entertainment", USER_ID, FROM, TO);
+        assertNull(FamilyBudgetBot.expensesCallback(true, Long.MAX_VALUE, filter));
+    }
+
+    @Test
+    void parseArguments() {
+        Family family = new Family("test", List.of("111", USER_ID), null);
+        assertEquals(ExpenseFilter.ALL, ExpenseFilter.parse(List.of(), "111", family, categories));
+        assertEquals(new ExpenseFilter("food", "111", FROM, TO),
+                ExpenseFilter.parse(List.of("кафе", "01.09.2024-30.09.2024", "мои"), "111", family, categories));
+        assertEquals(new ExpenseFilter(null, USER_ID, FROM, FROM),
+                ExpenseFilter.parse(List.of(USER_ID, "01.09.2024"), "111", family, categories));
+        assertThrows(IllegalArgumentException.class,
+                () -> ExpenseFilter.parse(List.of("30.09.2024-01.09.2024"), "111", family, categories));
+        assertThrows(IllegalArgumentException.class,
+                () -> ExpenseFilter.parse(List.of("31.09.2024"), "111", family, categories));
+        assertThrows(IllegalArgumentException.class,
+                () -> ExpenseFilter.parse(List.of("пивас"), "111", family, categories));
+    }
+
+    private static List<String> codenames() throws SQLException {
+        List<String> codenames = new ArrayList<>();
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT codename FROM category;")) {
+            while (rs.next()) {
+                codenames.add(rs.getString(1));
+            }
+        }
+        return codenames;
+    }
+}
@@ -0,0 +1,167 @@
+package ru.familybudget;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Write-behind journal: expenses acknowledged before a crash reach the database exactly once.
+ */
+class ExpenseJournalTest {
+    // Long enough that nothing is flushed on a timer while a test runs
+    private static final long NEVER_MILLIS = 3_600_000;
+    private static final int MAX_BATCH = 1000;
+    private static final LocalDateTime DATE = LocalDateTime.of(2024, 3, 15, 12, 0);
+
+    private Path dir;
+    private String url;
+    private Path journalFile;
+
+    @BeforeEach
+    void create() throws Exception {
+        dir = Files.createTempDirectory("expense-journal");
+        url = "jdbc:sqlite:" + dir.resolve("budget.db");
+        journalFile = dir.resolve("budget.db.pending");
+        BudgetDB budgetDB = new BudgetDB(url);
+        assertTrue(budgetDB.connect());
+        budgetDB.close();
+    }
+
+    @AfterEach
+    void delete() throws Exception {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    void replaysJournalLeftByCrashExactlyOnce() throws Exception {
+        crashWithJournal(expenses(100, 200, 300));
+
+        BudgetDB budgetDB = openWriteBehind();
+        budgetDB.close();
+        assertEquals(List.of(100, 200, 300), committedAmounts());
+        assertEquals(3, committedSeq());
+        assertEquals(0, Files.size(journalFile));
+
+        // Nothing is left to replay on the next start
+        budgetDB = openWriteBehind();
+        budgetDB.close();
+        assertEquals(List.of(100, 200, 300), committedAmounts());
+    }
+
+    @Test
+    void replaySkipsCommittedRecords() throws Exception {
+        // Records 1 and 2 were committed, but the bot died before the journal was emptied
+        BudgetDB budgetDB = new BudgetDB(url);
+        assertTrue(budgetDB.connect());
+        for (Expense expense : expenses(100, 200)) {
+            budgetDB.insertExpense(expense, 1, expense.getRawText());
+        }
+        budgetDB.close();
+        execute("UPDATE journal_state SET last_seq = 2;");
+        crashWithJournal(expenses(100, 200, 300));
+
+        budgetDB = openWriteBehind();
+        budgetDB.close();
+        assertEquals(List.of(100, 200, 300), committedAmounts());
+        assertEquals(3, committedSeq());
+        assertEquals(0, Files.size(journalFile));
+    }
+
+    @Test
+    void flushCommitsPendingExpensesAndEmptiesJournal() throws Exception {
+        BudgetDB budgetDB = openWriteBehind();
+        try {
+            for (Expense expense : expenses(100, 200)) {
+                assertEquals(String.valueOf(expense.getAmount()), budgetDB.insertExpense(expense, 1, expense.getRawText()).get("amount"));
+            }
+            assertEquals(List.of(), committedAmounts());
+            assertTrue(Files.size(journalFile) > 0);
+
+            budgetDB.flushJournal();
+            assertEquals(List.of(100, 200), committedAmounts());
+            assertEquals(2, committedSeq());
+            assertEquals(0, Files.size(journalFile));
+        } finally {
+            budgetDB.close();
+        }
+        assertEquals(List.of(100, 200), committedAmounts());
+    }
+
+    private BudgetDB openWriteBehind() {
+        BudgetDB budgetDB = new BudgetDB(url);
+        budgetDB.enableWriteBehind(NEVER_MILLIS, MAX_BATCH, false);
+        assertTrue(budgetDB.connect());
+        return budgetDB;
+    }
+
+    /**
+     * Appends the expenses to the journal and stops without committing them, as a killed bot would.
+     */
+    private void crashWithJournal(List<Expense> expenses) throws Exception {
+        ExpenseJournal journal = new ExpenseJournal(journalFile, NEVER_MILLIS, MAX_BATCH, true);
+        journal.open(0, () -> {
+        });
+        journal.append(expenses);
+        journal.close();
+    }
+
+    private static List<Expense> expenses(int... amounts) {
+        List<Expense> expenses = new ArrayList<>();
+        for (int amount : amounts) {
+            Expense expense = new Expense();
+            expense.setUserId(1);
+            expense.setAmount(amount);
+            expense.setCategory("products");
+            expense.setDate(DATE);
+            expense.setRawText(amount + " продукты");
+            expenses.add(expense);
+        }
+        return expenses;
+    }
+
+    private List<Integer> committedAmounts() throws Exception {
+        List<Integer> amounts = new ArrayList<>();
+        try (Connection conn = DriverManager.getConnection(url);
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT amount FROM expense ORDER BY id;")) {
+            while (rs.next()) {
+                amounts.add(rs.getInt(1));
+            }
+        }
+        return amounts;
+    }
+
+    private long committedSeq() throws Exception {
+        try (Connection conn = DriverManager.getConnection(url);
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT last_seq FROM journal_state WHERE id = 1;")) {
+            return rs.next() ? rs.getLong(1) : -1;
+        }
+    }
+
+    private void execute(String sql) throws Exception {
+        try (Connection conn = DriverManager.getConnection(url);
+             Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate(sql);
+        }
+    }
+}
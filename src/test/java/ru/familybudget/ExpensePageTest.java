@@ -0,0 +1,122 @@
+package ru.familybudget;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Keyset paging of the /expenses history over 25 expenses, one an hour, whose amounts are their numbers 1 to 25.
+ * Odd expenses are groceries by user 1, even ones taxi rides by user 2.
+ */
+class ExpensePageTest {
+    private static final LocalDateTime START = LocalDateTime.of(2024, 9, 1, 0, 0);
+    private static final int EXPENSES = 25;
+
+    private Path dir;
+    private BudgetDB budgetDB;
+
+    @BeforeEach
+    void seed() throws Exception {
+        dir = Files.createTempDirectory("expense-page");
+        budgetDB = new BudgetDB("jdbc:sqlite:" + dir.resolve("budget.db"));
+        assertTrue(budgetDB.connect());
+        for (int amount = 1; amount <= EXPENSES; amount++) {
+            boolean odd = amount % 2 == 1;
+            Expense expense = new Expense();
+            expense.setAmount(amount);
+            expense.setCategory(odd ? "продукты" : "такси");
+            expense.setDate(START.plusHours(amount));
+            budgetDB.insertExpense(expense, odd ? 1 : 2, amount + " " + expense.getCategory());
+        }
+    }
+
+    @AfterEach
+    void close() throws Exception {
+        budgetDB.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    void pagesOlderAndBack() {
+        ExpensePage first = budgetDB.getExpensePage(ExpenseFilter.ALL, 0, true);
+        assertEquals(range(25, 16), amounts(first));
+        assertFalse(first.hasNewer());
+        assertTrue(first.hasOlder());
+
+        ExpensePage second = budgetDB.getExpensePage(ExpenseFilter.ALL, first.lastId(), true);
+        assertEquals(range(15, 6), amounts(second));
+        assertTrue(second.hasNewer());
+        assertTrue(second.hasOlder());
+
+        ExpensePage last = budgetDB.getExpensePage(ExpenseFilter.ALL, second.lastId(), true);
+        assertEquals(range(5, 1), amounts(last));
+        assertTrue(last.hasNewer());
+        assertFalse(last.hasOlder());
+        assertTrue(budgetDB.getExpensePage(ExpenseFilter.ALL, last.lastId(), true).isEmpty());
+
+        ExpensePage back = budgetDB.getExpensePage(ExpenseFilter.ALL, last.firstId(), false);
+        assertEquals(amounts(second), amounts(back));
+        assertTrue(back.hasNewer());
+        assertTrue(back.hasOlder());
+
+        ExpensePage newest = budgetDB.getExpensePage(ExpenseFilter.ALL, back.firstId(), false);
+        assertEquals(amounts(first), amounts(newest));
+        assertFalse(newest.hasNewer());
+        assertTrue(newest.hasOlder());
+    }
+
+    @Test
+    void pagesWithinFilter() {
+        ExpenseFilter groceries = new ExpenseFilter("products", "1", null, null);
+        ExpensePage first = budgetDB.getExpensePage(groceries, 0, true);
+        assertEquals(List.of(25, 23, 21, 19, 17, 15, 13, 11, 9, 7), amounts(first));
+        assertFalse(first.hasNewer());
+        assertTrue(first.hasOlder());
+
+        ExpensePage last = budgetDB.getExpensePage(groceries, first.lastId(), true);
+        assertEquals(List.of(5, 3, 1), amounts(last));
+        assertTrue(last.hasNewer());
+        assertFalse(last.hasOlder());
+
+        assertTrue(budgetDB.getExpensePage(new ExpenseFilter("transport", "1", null, null), 0, true).isEmpty());
+    }
+
+    @Test
+    void dateRangeIncludesBothDays() {
+        // Expenses 1 to 23 are on September 1st, 24 and 25 on the 2nd
+        LocalDate second = START.toLocalDate().plusDays(1);
+        ExpensePage page = budgetDB.getExpensePage(new ExpenseFilter(null, null, second, second), 0, true);
+        assertEquals(List.of(25, 24), amounts(page));
+        assertFalse(page.hasNewer());
+        assertFalse(page.hasOlder());
+
+        ExpensePage none = budgetDB.getExpensePage(new ExpenseFilter(null, null, second.plusDays(1), second.plusDays(30)), 0, true);
+        assertTrue(none.isEmpty());
+        assertFalse(none.hasOlder());
+    }
+
+    private static List<Integer> amounts(ExpensePage page) {
+        return page.rows().stream().map(ExpensePage.Row::amount).toList();
+    }
+
+    private static List<Integer> range(int from, int downTo) {
+        return IntStream.rangeClosed(downTo, from).map(i -> from + downTo - i).boxed().toList();
+    }
+}
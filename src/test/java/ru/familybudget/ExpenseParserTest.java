@@ -0,0 +1,76 @@
+package ru.familybudget;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ExpenseParserTest {
+    @Test
+    void amountAndCategory() {
+        Expense expense = ExpenseParser.parse("250 продукты");
+        assertEquals(250, expense.getAmount());
+        assertEquals("продукты", expense.getCategory());
+        assertEquals(LocalDate.now(), expense.getDate().toLocalDate());
+    }
+
+    @Test
+    void amountOnly() {
+        Expense expense = ExpenseParser.parse("1000");
+        assertEquals(1000, expense.getAmount());
+        assertEquals("", expense.getCategory());
+    }
+
+    @Test
+    void categoryOfSeveralWords() {
+        assertEquals("кафе у дома", ExpenseParser.parse("300  кафе у дома ").getCategory());
+    }
+
+    @Test
+    void decimalsAreRoundedToRubles() {
+        assertEquals(100, ExpenseParser.parse("99,50 аптека").getAmount());
+        assertEquals(99, ExpenseParser.parse("99.49 аптека").getAmount());
+        assertEquals(100, ExpenseParser.parse("99.9 аптека").getAmount());
+        assertEquals(1, ExpenseParser.parse("0,5").getAmount());
+    }
+
+    @Test
+    void invalidAmounts() {
+        assertNull(ExpenseParser.parse("продукты 250"));
+        assertNull(ExpenseParser.parse("0 продукты"));
+        assertNull(ExpenseParser.parse("0,49 продукты"));
+        assertNull(ExpenseParser.parse("1,234 продукты"));
+        assertNull(ExpenseParser.parse("99999999999 продукты"));
+        assertNull(ExpenseParser.parse(""));
+    }
+
+    @Test
+    void explicitDate() {
+        Expense expense = ExpenseParser.parse("3000 такси 01.02.2024");
+        assertEquals(LocalDate.of(2024, 2, 1), expense.getDate().toLocalDate());
+        assertEquals("такси", expense.getCategory());
+    }
+
+    @Test
+    void impossibleDateIsRejected() {
+        assertNull(ExpenseParser.parse("3000 такси 31.02.2024"));
+    }
+
+    @Test
+    void relativeDates() {
+        LocalDate today = LocalDate.now();
+        assertEquals(today, ExpenseParser.parse("100 кофе сегодня").getDate().toLocalDate());
+        assertEquals(today.minusDays(1), ExpenseParser.parse("100 кофе Вчера").getDate().toLocalDate());
+        assertEquals(today.minusDays(2), ExpenseParser.parse("100 кофе позавчера").getDate().toLocalDate());
+        assertEquals("кофе", ExpenseParser.parse("100 кофе вчера").getCategory());
+    }
+
+    @Test
+    void relativeDateAloneLeavesCategoryEmpty() {
+        Expense expense = ExpenseParser.parse("100 вчера");
+        assertEquals("", expense.getCategory());
+        assertEquals(LocalDate.now().minusDays(1), expense.getDate().toLocalDate());
+    }
+}
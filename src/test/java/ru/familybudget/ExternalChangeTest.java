@@ -0,0 +1,120 @@
+package ru.familybudget;
+
+import org.json.JSONArray;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.quartz.CronScheduleBuilder;
+import org.quartz.Job;
+import org.quartz.JobBuilder;
+import org.quartz.JobDetail;
+import org.quartz.JobExecutionContext;
+import org.quartz.TriggerBuilder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Cached reports are dropped when another process writes to the family database, but not when the bot's
+ * own scheduled jobs run.
+ */
+class ExternalChangeTest {
+    // Longer than the interval of BudgetDB.checkExternalChange()
+    private static final long CHECK_INTERVAL_MILLIS = 1100;
+    private static volatile BudgetDB jobDB;
+    private static volatile BackupService jobBackups;
+    private static volatile CountDownLatch ticks;
+
+    private Path dir;
+    private BudgetDB budgetDB;
+
+    @BeforeEach
+    void open() throws Exception {
+        dir = Files.createTempDirectory("external-change");
+        budgetDB = new BudgetDB("jdbc:sqlite:" + dir.resolve("budget.db"));
+        assertTrue(budgetDB.connect());
+        Expense expense = new Expense();
+        expense.setCategory("продукты");
+        expense.setAmount(250);
+        budgetDB.insertExpense(expense, 1, "250 продукты");
+    }
+
+    @AfterEach
+    void close() throws Exception {
+        budgetDB.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    void reportSurvivesSchedulerTick() throws Exception {
+        JSONArray report = budgetDB.getMonthStatistic();
+        long version = budgetDB.getDataVersion();
+
+        jobDB = budgetDB;
+        jobBackups = new BackupService(dir.resolve("backup"), 1, false);
+        ticks = new CountDownLatch(2);
+        BudgetScheduler scheduler = new BudgetScheduler("jdbc:sqlite:" + dir.resolve("scheduler.db"), 1);
+        JobDetail job = JobBuilder.newJob(BackupAndPurge.class).withIdentity("backup-and-purge").storeDurably().build();
+        scheduler.addJob(job);
+        scheduler.sync("test", List.of(TriggerBuilder.newTrigger().withIdentity("every-second", "test").forJob(job)
+                .withSchedule(CronScheduleBuilder.cronSchedule("* * * * * ?")).build()));
+        scheduler.start();
+        try {
+            assertTrue(ticks.await(10, TimeUnit.SECONDS));
+        } finally {
+            scheduler.shutdown();
+        }
+        Thread.sleep(CHECK_INTERVAL_MILLIS);
+
+        assertEquals(version, budgetDB.getDataVersion());
+        assertSame(report, budgetDB.getMonthStatistic());
+    }
+
+    @Test
+    void externalWriteDropsReport() throws Exception {
+        JSONArray report = budgetDB.getMonthStatistic();
+        long version = budgetDB.getDataVersion();
+
+        try (Connection conn = DriverManager.getConnection(budgetDB.getUrl());
+             Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("UPDATE monthly_category_total SET amount = amount + 50;");
+        }
+        Thread.sleep(CHECK_INTERVAL_MILLIS);
+
+        assertNotEquals(version, budgetDB.getDataVersion());
+        assertEquals(300, budgetDB.getMonthStatistic().getJSONObject(0).getInt("sum"));
+        assertNotSame(report, budgetDB.getMonthStatistic());
+    }
+
+    public static class BackupAndPurge implements Job {
+        @Override
+        public void execute(JobExecutionContext context) {
+            try {
+                jobBackups.backupAsync(jobDB).get();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            jobDB.purgeDeleted(LocalDateTime.now().minusDays(30));
+            ticks.countDown();
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package ru.familybudget;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.telegram.telegrambots.bots.DefaultAbsSender;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
+import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.send.SendPhoto;
+import org.telegram.telegrambots.meta.api.objects.ApiResponse;
+import org.telegram.telegrambots.meta.api.objects.InputFile;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * OutboundSender against a fake bot that answers every request with whatever the test scripted for it.
+ */
+class OutboundSenderTest {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private FakeBot bot;
+    private OutboundSender sender;
+
+    @BeforeEach
+    void start() {
+        bot = new FakeBot();
+        sender = new OutboundSender(bot);
+    }
+
+    @AfterEach
+    void stop() {
+        sender.shutdown();
+    }
+
+    @Test
+    void coalescesWaitingMessages() throws Exception {
+        CompletableFuture<Object> firstResponse = new CompletableFuture<>();
+        bot.respond(0, firstResponse);
+        CompletableFuture<Message> first = sender.sendMessage("1", "a", "report");
+        bot.awaitCalls(1);
+
+        CompletableFuture<Message> second = sender.sendMessage("1", "b", "report");
+        CompletableFuture<Message> third = sender.sendMessage("1", "c", "report");
+        CompletableFuture<Message> other = sender.sendMessage("1", "d");
+        firstResponse.complete(new Message());
+
+        assertSame(second, third);
+        CompletableFuture.allOf(first, second, other).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(List.of("a", "b\nc", "d"), bot.texts());
+    }
+
+    @Test
+    void limitsRatePerChat() throws Exception {
+        List<CompletableFuture<Message>> results = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            results.add(sender.sendMessage("1", "busy " + i));
+        }
+        results.add(sender.sendMessage("2", "quiet"));
+        CompletableFuture.allOf(results.toArray(CompletableFuture[]::new)).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        List<Long> busy = bot.callTimes("1");
+        assertEquals(5, busy.size());
+        // A burst of three goes out at once, the rest at one per second
+        assertTrue(millisBetween(busy.get(0), busy.get(2)) < 500);
+        assertTrue(millisBetween(busy.get(2), busy.get(3)) >= 800);
+        assertTrue(millisBetween(busy.get(3), busy.get(4)) >= 800);
+        // Another chat does not wait for the busy one
+        assertTrue(bot.callTimes("2").get(0) < busy.get(3));
+    }
+
+    @Test
+    void retriesAfterTooManyRequests() throws Exception {
+        bot.respond(0, CompletableFuture.failedFuture(requestException(
+                "{\"ok\":false,\"error_code\":429,\"description\":\"Too Many Requests\",\"parameters\":{\"retry_after\":1}}")));
+
+        assertNotNull(sender.sendMessage("1", "a").get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        List<Long> times = bot.callTimes("1");
+        assertEquals(2, times.size());
+        assertTrue(millisBetween(times.get(0), times.get(1)) >= 900);
+    }
+
+    @Test
+    void retriesServerErrorsWithBackoff() throws Exception {
+        TelegramApiRequestException serverError = requestException(
+                "{\"ok\":false,\"error_code\":502,\"description\":\"Bad Gateway\"}");
+        bot.respond(0, CompletableFuture.failedFuture(serverError));
+        bot.respond(1, CompletableFuture.failedFuture(serverError));
+
+        assertNotNull(sender.sendMessage("1", "a").get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        List<Long> times = bot.callTimes("1");
+        assertEquals(3, times.size());
+        assertTrue(millisBetween(times.get(0), times.get(1)) >= 450);
+        assertTrue(millisBetween(times.get(1), times.get(2)) >= 950);
+    }
+
+    @Test
+    void doesNotRetryClientErrors() throws Exception {
+        bot.respond(0, CompletableFuture.failedFuture(requestException(
+                "{\"ok\":false,\"error_code\":400,\"description\":\"Bad Request: can't parse entities\"}")));
+
+        ExecutionException error = assertThrows(ExecutionException.class,
+                () -> sender.sendMessage("1", "<b").get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertInstanceOf(TelegramApiRequestException.class, error.getCause());
+        assertNotNull(sender.sendMessage("1", "ok").get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(List.of("<b", "ok"), bot.texts());
+    }
+
+    @Test
+    void runtimeExceptionFailsOnlyThatRequest() throws Exception {
+        bot.fail(0, new IllegalStateException("broken request"));
+
+        ExecutionException error = assertThrows(ExecutionException.class,
+                () -> sender.sendMessage("1", "a").get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalStateException.class, error.getCause());
+        // The chat is not left in flight and the drain task keeps running
+        assertNotNull(sender.sendMessage("1", "b").get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertNotNull(sender.sendMessage("2", "c").get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void retriedPhotoIsUploadedAgain() throws Exception {
+        byte[] chart = "chart".getBytes(StandardCharsets.UTF_8);
+        bot.respond(0, CompletableFuture.failedFuture(requestException(
+                "{\"ok\":false,\"error_code\":500,\"description\":\"Internal Server Error\"}")));
+        SendPhoto sendPhoto = new SendPhoto();
+        sendPhoto.setChatId("1");
+        sendPhoto.setPhoto(new InputFile(new ByteArrayInputStream(chart), "chart.png"));
+
+        assertNotNull(sender.sendPhoto(sendPhoto).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(2, bot.uploads.size());
+        for (byte[] upload : bot.uploads) {
+            assertArrayEquals(chart, upload);
+        }
+    }
+
+    private static long millisBetween(long startNanos, long endNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(endNanos - startNanos);
+    }
+
+    private static TelegramApiRequestException requestException(String json) throws IOException {
+        ApiResponse<Message> response = new ObjectMapper().readValue(json, new TypeReference<ApiResponse<Message>>() {
+        });
+        return new TelegramApiRequestException("Error sending request", response);
+    }
+
+    /**
+     * Records every request with its chat, text and time. Requests without a scripted answer succeed.
+     */
+    private static final class FakeBot extends DefaultAbsSender {
+        private final List<Call> calls = new CopyOnWriteArrayList<>();
+        private final List<byte[]> uploads = new CopyOnWriteArrayList<>();
+        private final List<Object> answers = new CopyOnWriteArrayList<>();
+
+        private FakeBot() {
+            super(new DefaultBotOptions(), "token");
+        }
+
+        void respond(int call, CompletableFuture<?> answer) {
+            answer(call, answer);
+        }
+
+        void fail(int call, RuntimeException exception) {
+            answer(call, exception);
+        }
+
+        private synchronized void answer(int call, Object answer) {
+            while (answers.size() <= call) {
+                answers.add(null);
+            }
+            answers.set(call, answer);
+        }
+
+        void awaitCalls(int count) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+            while (calls.size() < count && System.nanoTime() - deadline < 0) {
+                Thread.sleep(5);
+            }
+            assertEquals(count, calls.size());
+        }
+
+        List<String> texts() {
+            return calls.stream().map(Call::text).toList();
+        }
+
+        List<Long> callTimes(String chatId) {
+            return calls.stream().filter(call -> call.chatId().equals(chatId)).map(Call::nanos).toList();
+        }
+
+        @Override
+        public <T extends Serializable, Method extends BotApiMethod<T>> CompletableFuture<T> executeAsync(Method method) {
+            String chatId = method instanceof SendMessage message ? message.getChatId() : "";
+            String text = method instanceof SendMessage message ? message.getText() : null;
+            return answer(chatId, text);
+        }
+
+        @Override
+        public CompletableFuture<Message> executeAsync(SendPhoto sendPhoto) {
+            try {
+                uploads.add(sendPhoto.getPhoto().getNewMediaStream().readAllBytes());
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return answer(sendPhoto.getChatId(), null);
+        }
+
+        @SuppressWarnings("unchecked")
+        private synchronized <T> CompletableFuture<T> answer(String chatId, String text) {
+            int index = calls.size();
+            calls.add(new Call(chatId, text, System.nanoTime()));
+            Object answer = index < answers.size() ? answers.get(index) : null;
+            if (answer instanceof RuntimeException exception) {
+                throw exception;
+            }
+            if (answer != null) {
+                return (CompletableFuture<T>) answer;
+            }
+            return (CompletableFuture<T>) CompletableFuture.completedFuture(new Message());
+        }
+    }
+
+    private record Call(String chatId, String text, long nanos) {
+    }
+}
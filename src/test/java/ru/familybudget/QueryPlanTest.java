@@ -0,0 +1,76 @@
+package ru.familybudget;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Checks with EXPLAIN QUERY PLAN on a freshly migrated database that the report, export and
+ * expense page queries are answered from an index rather than a full table scan.
+ */
+class QueryPlanTest {
+    // "SCAN expense" is a full table scan, "SCAN expense USING INDEX ..." is not
+    private static final Pattern TABLE_SCAN = Pattern.compile("^SCAN \\w+$");
+
+    private static Path file;
+    private static Connection connection;
+
+    @BeforeAll
+    static void migrate() throws IOException, SQLException {
+        file = Files.createTempFile("query-plan", ".db");
+        connection = DriverManager.getConnection("jdbc:sqlite:" + file);
+        SchemaMigrations.migrate(connection);
+    }
+
+    @AfterAll
+    static void close() throws IOException, SQLException {
+        connection.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    void indexedQueriesUseIndexes() throws SQLException {
+        for (String sql : BudgetDB.INDEXED_QUERIES) {
+            assertIndexed(sql);
+        }
+    }
+
+    @Test
+    void expensePagesUseIndexes() throws SQLException {
+        LocalDate day = LocalDate.of(2024, 1, 1);
+        for (int mask = 0; mask < 8; mask++) {
+            ExpenseFilter filter = new ExpenseFilter((mask & 1) != 0 ? "food" : null, (mask & 2) != 0 ? "1" : null,
+                    (mask & 4) != 0 ? day : null, (mask & 4) != 0 ? day : null);
+            assertIndexed(BudgetDB.expensePageQuery(filter, true));
+            assertIndexed(BudgetDB.expensePageQuery(filter, false));
+        }
+    }
+
+    private static void assertIndexed(String sql) throws SQLException {
+        List<String> plan = new ArrayList<>();
+        try (Statement stmt = connection.createStatement();
+             ResultSet resultSet = stmt.executeQuery("EXPLAIN QUERY PLAN " + sql.replace("?", "NULL"))) {
+            while (resultSet.next()) {
+                plan.add(resultSet.getString("detail"));
+            }
+        }
+        for (String detail : plan) {
+            assertFalse(TABLE_SCAN.matcher(detail).matches(), () -> "Query " + sql + " scans a table: " + plan);
+        }
+    }
+}
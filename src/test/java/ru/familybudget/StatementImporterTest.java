@@ -0,0 +1,101 @@
+package ru.familybudget;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Import of the statements in {@code src/test/resources/statements} into a family database.
+ */
+class StatementImporterTest {
+    private Path dir;
+    private BudgetDB budgetDB;
+    private StatementImporter importer;
+
+    @BeforeEach
+    void open() throws Exception {
+        dir = Files.createTempDirectory("statement-import");
+        budgetDB = new BudgetDB("jdbc:sqlite:" + dir.resolve("budget.db"));
+        assertTrue(budgetDB.connect());
+        importer = new StatementImporter(budgetDB);
+    }
+
+    @AfterEach
+    void close() throws Exception {
+        budgetDB.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    void importsExpensesOnce() throws Exception {
+        // The refund is income, the row dated "вчера" is invalid
+        assertEquals(new StatementImporter.Progress(4, 3, 0, 1, 1), importStatement("statement.csv"));
+        assertEquals(List.of(
+                "1235 products ООО \"Ромашка\"; магазин",
+                "100 health Аптека 36,6\nМосква",
+                "3000 other Перевод Иванову И."
+        ), expenses());
+
+        assertEquals(new StatementImporter.Progress(4, 0, 3, 1, 1), importStatement("statement.csv"));
+        assertEquals(3, expenses().size());
+    }
+
+    @Test
+    void importsOfxWithoutBankCategories() throws Exception {
+        // The credit is income, the transaction dated "2024" is invalid
+        assertEquals(new StatementImporter.Progress(3, 2, 0, 1, 1), importStatement("statement.ofx"));
+        assertEquals(List.of(
+                "1235 other AUCHAN & CO Card *1234",
+                "100 other APTEKA"
+        ), expenses());
+    }
+
+    @Test
+    void unknownCategoriesFallBackToOther() {
+        assertEquals("products", importer.categorize("Супермаркеты", "").codename());
+        // An unknown bank category falls back to an exact word of the description
+        assertEquals("transport", importer.categorize("Финансовые услуги", "Такси Яндекс").codename());
+        assertEquals("transport", importer.categorize("", "Такси Яндекс").codename());
+        assertEquals(Category.OTHER, importer.categorize("Финансовые услуги", "Перевод Иванову И."));
+        // Description words are not matched fuzzily: "такса" is one letter away from "такси"
+        assertEquals(Category.OTHER, importer.categorize("", "Зоомагазин Такса"));
+    }
+
+    private StatementImporter.Progress importStatement(String fixture) throws Exception {
+        try (InputStream in = StatementImporterTest.class.getResourceAsStream("/statements/" + fixture)) {
+            return importer.importStatement(in, fixture, 1, progress -> {
+            });
+        }
+    }
+
+    private List<String> expenses() throws Exception {
+        List<String> expenses = new ArrayList<>();
+        try (Connection conn = DriverManager.getConnection(budgetDB.getUrl());
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT amount, category_codename, raw_text FROM expense ORDER BY created;")) {
+            while (rs.next()) {
+                expenses.add(rs.getInt(1) + " " + rs.getString(2) + " " + rs.getString(3));
+            }
+        }
+        return expenses;
+    }
+}
@@ -0,0 +1,115 @@
+package ru.familybudget;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Parsing of the CSV and OFX statements in {@code src/test/resources/statements}.
+ */
+class StatementReaderTest {
+
+    @Test
+    void csvWithQuotedFields() throws IOException {
+        List<StatementReader.Transaction> transactions = new ArrayList<>();
+        int invalid = read("statement.csv", transactions);
+
+        assertEquals(List.of(
+                new StatementReader.Transaction(LocalDateTime.of(2024, 3, 15, 12, 30), -123456,
+                        "ООО \"Ромашка\"; магазин", "Супермаркеты"),
+                new StatementReader.Transaction(LocalDateTime.of(2024, 3, 16, 0, 0), -9950,
+                        "Аптека 36,6\nМосква", "Аптеки"),
+                new StatementReader.Transaction(LocalDateTime.of(2024, 3, 17, 9, 0), 50000,
+                        "Возврат покупки", "Возврат"),
+                new StatementReader.Transaction(LocalDateTime.of(2024, 3, 18, 0, 0), -300000,
+                        "Перевод Иванову И.", "Финансовые услуги")
+        ), transactions);
+        // The row dated "вчера"
+        assertEquals(1, invalid);
+        assertEquals(1235, transactions.get(0).rubles());
+        assertEquals(100, transactions.get(1).rubles());
+    }
+
+    @Test
+    void csvInWindows1251() throws IOException {
+        String csv = "Дата;Сумма;Назначение\r\n2024-03-15;-250.00;Кофейня \"Зерно\"\r\n";
+        try (StatementReader reader = StatementReader.open(
+                new ByteArrayInputStream(csv.getBytes(Charset.forName("windows-1251"))), "statement.csv")) {
+            assertEquals(new StatementReader.Transaction(LocalDateTime.of(2024, 3, 15, 0, 0), -25000,
+                    "Кофейня \"Зерно\"", ""), reader.next());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    void csvWithoutDateOrAmountIsRejected() throws IOException {
+        String csv = "Описание;Категория\nкофе;Кафе\n";
+        try (StatementReader reader = StatementReader.open(
+                new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)), "statement.csv")) {
+            assertThrows(IllegalArgumentException.class, reader::next);
+        }
+    }
+
+    @Test
+    void ofxDebitsAndCredits() throws IOException {
+        List<StatementReader.Transaction> transactions = new ArrayList<>();
+        int invalid = read("statement.ofx", transactions);
+
+        assertEquals(List.of(
+                new StatementReader.Transaction(LocalDateTime.of(2024, 3, 15, 12, 0), -123456,
+                        "AUCHAN & CO Card *1234", ""),
+                new StatementReader.Transaction(LocalDateTime.of(2024, 3, 16, 0, 0), 250000, "REFUND", ""),
+                new StatementReader.Transaction(LocalDateTime.of(2024, 3, 17, 9, 30), -9950, "APTEKA", "")
+        ), transactions);
+        // The transaction dated "2024"
+        assertEquals(1, invalid);
+    }
+
+    @Test
+    void ofxXmlIsDetectedByContent() throws IOException {
+        String ofx = "<?xml version=\"1.0\"?><OFX><BANKTRANLIST><STMTTRN><TRNTYPE>DEBIT</TRNTYPE>"
+                + "<DTPOSTED>20240315</DTPOSTED><TRNAMT>-5,00</TRNAMT><NAME>Метро</NAME></STMTTRN>"
+                + "</BANKTRANLIST></OFX>";
+        try (StatementReader reader = StatementReader.open(
+                new ByteArrayInputStream(ofx.getBytes(StandardCharsets.UTF_8)), null)) {
+            assertEquals(new StatementReader.Transaction(LocalDateTime.of(2024, 3, 15, 0, 0), -500, "Метро", ""),
+                    reader.next());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    void parseKopecks() {
+        assertEquals(-123456, StatementReader.parseKopecks("-1 234,56"));
+        assertEquals(-123456, StatementReader.parseKopecks("−1,234.56"));
+        assertEquals(50000, StatementReader.parseKopecks("+500"));
+        assertEquals(1, StatementReader.parseKopecks("0,005"));
+        assertThrows(NumberFormatException.class, () -> StatementReader.parseKopecks("руб."));
+    }
+
+    /**
+     * Reads every transaction of a fixture.
+     *
+     * @return number of rows skipped as invalid
+     */
+    private static int read(String fixture, List<StatementReader.Transaction> transactions) throws IOException {
+        try (InputStream in = StatementReaderTest.class.getResourceAsStream("/statements/" + fixture);
+             StatementReader reader = StatementReader.open(in, fixture)) {
+            for (StatementReader.Transaction transaction = reader.next(); transaction != null; transaction = reader.next()) {
+                transactions.add(transaction);
+            }
+            return reader.getInvalid();
+        }
+    }
+}